@@ -0,0 +1,91 @@
+#!/bin/bash
+
+# Starts a cluster of two servers, three publisher/subscriber pairs on
+# server 1, and migrates the fleet to server 2 and back in waves with the
+# FleetCoordinator.  Each step waits for what it needs to be ready rather
+# than for a fixed time.
+
+CP=jars/jnats-2.6.8.jar:build/libs/java-examples.jar:$CLASSPATH
+
+# how long to wait for a server or an application to be ready, in seconds.
+READY_TIMEOUT=30
+
+# await <description> <command...>: polls the command until it succeeds.
+function await {
+    local what=$1
+    shift
+    local deadline=$((SECONDS + READY_TIMEOUT))
+    until "$@" >/dev/null 2>&1; do
+        if [ $SECONDS -ge $deadline ]; then
+            echo "Timed out waiting for $what."
+            exit 1
+        fi
+        sleep 0.1
+    done
+}
+
+# has_route <monitor port>: the server is serving and has joined the cluster.
+function has_route {
+    curl -sf "http://127.0.0.1:$1/routez" | grep -Eq '"num_routes": *[1-9]'
+}
+
+# logged <file> <text>
+function logged {
+    grep -q "$2" "$1"
+}
+
+function start_servers {
+    echo "Starting servers."
+    nats-server -p 4222 -m 8222 --cluster "nats://127.0.0.1:6222" --routes "nats://127.0.0.1:6333" --pid s1.pid -l s1.log &
+    disown
+    nats-server -p 4333 -m 8333 --cluster "nats://127.0.0.1:6333" --routes "nats://127.0.0.1:6222" --pid s2.pid -l s2.log &
+    disown
+    await "server 1" has_route 8222
+    await "server 2" has_route 8333
+}
+
+function stop_servers {
+    echo "Stopping servers."
+    nats-server -sl stop=s1.pid
+    nats-server -sl stop=s2.pid
+}
+
+# migrate_fleet <tag> <port> [coordinator options]
+function migrate_fleet {
+    echo "Migrating $1 instances to server on port $2."
+    java -cp $CP io.nats.java.examples.FleetCoordinator nats://127.0.0.1:4222 $1 "nats://127.0.0.1:$2" ${@:3}
+}
+
+start_servers
+
+echo "Starting Test Apps."
+for i in 1 2 3
+do
+    java -cp $CP io.nats.java.examples.NatsLossSubscriber nats://127.0.0.1:4222 foo$i -instance sub$i > sub$i.log 2>&1 &
+done
+for i in 1 2 3
+do
+    await "subscriber $i" logged sub$i.log "waiting for the publisher's start message"
+done
+for i in 1 2 3
+do
+    java -cp $CP io.nats.java.examples.NatsLossPublisher nats://127.0.0.1:4222 60000 1000 foo$i 128 -instance pub$i > pub$i.log 2>&1 &
+done
+# publishers print their id once their control plane is subscribed.
+for i in 1 2 3
+do
+    await "publisher $i" logged pub$i.log "Publisher id"
+done
+
+migrate_fleet subscriber 4333 -wave 2 -pause 1000 -maxPropagation 100
+migrate_fleet publisher 4333 -wave 1 -pause 1000
+# run on server 2 for a while before moving back.
+sleep 5
+migrate_fleet subscriber 4222 -wave 2 -pause 1000 -maxPropagation 100
+migrate_fleet publisher 4222 -wave 1 -pause 1000
+
+echo "Wait for the NATS Loss Subscribers to finish."
+wait
+grep "Loss Percentage" sub1.log sub2.log sub3.log
+stop_servers
+echo "Test complete."
@@ -0,0 +1,337 @@
+// Copyright 2020 Colin Sullivan
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.java.examples;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal in-process stand-in for nats-server, for benchmarks and tests
+ * that can't rely on a nats-server binary being installed.
+ *
+ * It speaks enough of the core client protocol (INFO, CONNECT, PING/PONG,
+ * SUB, UNSUB, PUB and MSG) for the examples in this repository, including
+ * queue groups and the * and > wildcards.  It does no authentication.
+ *
+ * The server can listen on several ports at once.  Clients on every port
+ * share one set of subscriptions, so a single instance behaves like a
+ * cluster of servers with instant interest propagation, and a port can be
+ * stopped and restarted to simulate bouncing one member of the cluster.
+ */
+public class LocalNatsServer implements AutoCloseable {
+
+    private final Map<Integer, ServerSocket> listeners = new ConcurrentHashMap<>();
+    private final List<Client> clients = new CopyOnWriteArrayList<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private volatile boolean running = true;
+
+    // one subscription held by a client.
+    private static class Sub {
+        final Client client;
+        final String sid;
+        final String[] tokens;
+        final String queue;
+        volatile long max = -1;
+        long delivered;
+
+        Sub(Client client, String sid, String subject, String queue) {
+            this.client = client;
+            this.sid = sid;
+            this.tokens = subject.split("\\.");
+            this.queue = queue;
+        }
+
+        boolean matches(String[] subject) {
+            for (int i = 0; i < tokens.length; i++) {
+                if (">".equals(tokens[i])) {
+                    return subject.length > i;
+                }
+                if (i >= subject.length) {
+                    return false;
+                }
+                if (!"*".equals(tokens[i]) && !tokens[i].equals(subject[i])) {
+                    return false;
+                }
+            }
+            return tokens.length == subject.length;
+        }
+    }
+
+    private class Client implements Runnable {
+        final Socket socket;
+        final int port;
+        final OutputStream out;
+        final Map<String, Sub> subs = new ConcurrentHashMap<>();
+
+        Client(Socket s, int port) throws IOException {
+            socket = s;
+            this.port = port;
+            socket.setTcpNoDelay(true);
+            out = new BufferedOutputStream(s.getOutputStream(), 65536);
+        }
+
+        synchronized void write(byte[] bytes) throws IOException {
+            out.write(bytes);
+        }
+
+        synchronized void writeMsg(String subject, String sid, String reply, byte[] payload) throws IOException {
+            StringBuilder sb = new StringBuilder(64);
+            sb.append("MSG ").append(subject).append(' ').append(sid).append(' ');
+            if (reply != null) {
+                sb.append(reply).append(' ');
+            }
+            sb.append(payload.length).append("\r\n");
+            out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+            out.write(payload);
+            out.write(CRLF);
+        }
+
+        synchronized void flush() throws IOException {
+            out.flush();
+        }
+
+        public void run() {
+            try {
+                InputStream in = new BufferedInputStream(socket.getInputStream(), 65536);
+                write(("INFO {\"server_id\":\"local\",\"version\":\"2.1.0\",\"go\":\"none\",\"host\":\"127.0.0.1\",\"port\":"
+                    + port + ",\"max_payload\":1048576,\"proto\":1,\"client_id\":" + nextId.incrementAndGet() + "}\r\n")
+                    .getBytes(StandardCharsets.UTF_8));
+                flush();
+
+                String line;
+                while (running && (line = readLine(in)) != null) {
+                    String[] parts = line.split(" ");
+                    switch (parts[0].toUpperCase()) {
+                        case "PUB": {
+                            String reply = parts.length == 4 ? parts[2] : null;
+                            int size = Integer.parseInt(parts[parts.length - 1]);
+                            byte[] payload = new byte[size];
+                            int off = 0;
+                            while (off < size) {
+                                int n = in.read(payload, off, size - off);
+                                if (n < 0) {
+                                    return;
+                                }
+                                off += n;
+                            }
+                            in.read();
+                            in.read();
+                            route(parts[1], reply, payload);
+                            break;
+                        }
+                        case "SUB":
+                            if (parts.length == 4) {
+                                subs.put(parts[3], new Sub(this, parts[3], parts[1], parts[2]));
+                            } else {
+                                subs.put(parts[2], new Sub(this, parts[2], parts[1], null));
+                            }
+                            break;
+                        case "UNSUB":
+                            if (parts.length == 3) {
+                                Sub s = subs.get(parts[1]);
+                                if (s != null) {
+                                    s.max = Long.parseLong(parts[2]);
+                                    if (s.delivered >= s.max) {
+                                        subs.remove(parts[1]);
+                                    }
+                                }
+                            } else {
+                                subs.remove(parts[1]);
+                            }
+                            break;
+                        case "PING":
+                            write(PONG);
+                            break;
+                        default:
+                            // CONNECT, PONG and anything else we don't need.
+                            break;
+                    }
+                    if (in.available() == 0) {
+                        flushAll();
+                    }
+                }
+            } catch (IOException e) {
+                // the client went away.
+            } finally {
+                clients.remove(this);
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // NOOP
+                }
+            }
+        }
+    }
+
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] PONG = "PONG\r\n".getBytes(StandardCharsets.UTF_8);
+
+    private final AtomicInteger rr = new AtomicInteger();
+
+    public LocalNatsServer(int... ports) throws IOException {
+        for (int port : ports) {
+            start(port);
+        }
+    }
+
+    /**
+     * Starts listening on a port; a port of 0 picks a free one.  Returns the
+     * port.
+     */
+    public int start(int port) throws IOException {
+        ServerSocket listener = new ServerSocket();
+        listener.setReuseAddress(true);
+        listener.bind(new InetSocketAddress("127.0.0.1", port));
+        int bound = listener.getLocalPort();
+        listeners.put(bound, listener);
+        Thread t = new Thread(() -> accept(listener, bound), "local-nats-accept-" + bound);
+        t.setDaemon(true);
+        t.start();
+        return bound;
+    }
+
+    /**
+     * Stops listening on a port and disconnects its clients, as if that
+     * server in the cluster had been shut down.
+     */
+    public void stop(int port) throws IOException {
+        ServerSocket listener = listeners.remove(port);
+        if (listener != null) {
+            listener.close();
+        }
+        for (Client c : clients) {
+            if (c.port == port) {
+                c.socket.close();
+            }
+        }
+    }
+
+    public String getURL(int port) {
+        return "nats://127.0.0.1:" + port;
+    }
+
+    private void accept(ServerSocket listener, int port) {
+        while (running && !listener.isClosed()) {
+            try {
+                Client c = new Client(listener.accept(), port);
+                clients.add(c);
+                Thread t = new Thread(c, "local-nats-client");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void route(String subject, String reply, byte[] payload) throws IOException {
+        String[] tokens = subject.split("\\.");
+        Map<String, List<Sub>> queues = null;
+        for (Client c : clients) {
+            for (Sub s : c.subs.values()) {
+                if (!s.matches(tokens)) {
+                    continue;
+                }
+                if (s.queue != null) {
+                    if (queues == null) {
+                        queues = new ConcurrentHashMap<>();
+                    }
+                    queues.computeIfAbsent(s.queue, k -> new ArrayList<>()).add(s);
+                } else {
+                    deliver(s, subject, reply, payload);
+                }
+            }
+        }
+        if (queues != null) {
+            for (List<Sub> members : queues.values()) {
+                deliver(members.get(Math.floorMod(rr.getAndIncrement(), members.size())), subject, reply, payload);
+            }
+        }
+    }
+
+    private void deliver(Sub s, String subject, String reply, byte[] payload) {
+        try {
+            s.client.writeMsg(subject, s.sid, reply, payload);
+            s.delivered++;
+            if (s.max > 0 && s.delivered >= s.max) {
+                s.client.subs.remove(s.sid);
+            }
+        } catch (IOException e) {
+            // the client is gone, its reader will clean up.
+        }
+    }
+
+    private void flushAll() {
+        for (Client c : clients) {
+            try {
+                c.flush();
+            } catch (IOException e) {
+                // NOOP
+            }
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder(64);
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (b == '\n') {
+                int len = sb.length();
+                if (len > 0 && sb.charAt(len - 1) == '\r') {
+                    sb.setLength(len - 1);
+                }
+                return sb.toString();
+            }
+            sb.append((char)b);
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        for (ServerSocket listener : listeners.values()) {
+            listener.close();
+        }
+        for (Client c : clients) {
+            c.socket.close();
+        }
+    }
+
+    public static void main(String args[]) throws Exception {
+        int[] ports = new int[Math.max(1, args.length)];
+        ports[0] = 4222;
+        for (int i = 0; i < args.length; i++) {
+            ports[i] = Integer.parseInt(args[i]);
+        }
+        LocalNatsServer s = new LocalNatsServer(ports);
+        for (int port : ports) {
+            System.out.printf("Local NATS stand-in listening on %s\n", s.getURL(port));
+        }
+        Thread.currentThread().join();
+    }
+}
@@ -0,0 +1,649 @@
+// Copyright 2020 Colin Sullivan
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.java.examples;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import io.nats.client.Connection;
+import io.nats.client.Message;
+import io.nats.client.Nats;
+import io.nats.client.Options;
+
+/**
+ * Runs the migration test in-process, over a sweep of configurations, and
+ * reports each one in a form that can be compared across runs.
+ *
+ * For every combination of rate, message size, migration interval and
+ * server bounce, the harness starts a subscriber and a publisher on the
+ * first of two clustered servers and, while the publisher runs, migrates
+ * both to the other server every interval through their control planes.
+ * The server they left is then bounced: stopped, and started again after
+ * the bounce time.  The harness waits for each server to accept clients and
+ * rejoin the cluster rather than sleeping a fixed time.
+ *
+ * Each configuration passes if the subscriber received every message the
+ * publisher sent.  Results are appended to sweep.jsonl in the output
+ * directory, one JSON object per configuration, with the publisher's and
+ * subscriber's output in a log per configuration.  The harness exits with
+ * status 1 if any configuration lost messages.
+ */
+public class MigrationHarness {
+
+    static final String usageString = "\nUsage: java MigrationHarness [options]\n"
+            + "\nOptions:\n"
+            + "  -servers <nats-server|local>  run nats-server processes (default), or the in-process stand-in\n"
+            + "  -rates <r,r,...>              publish rates in msgs/sec, default 10000\n"
+            + "  -sizes <n,n,...>              message sizes in bytes, default 128\n"
+            + "  -intervals <ms,ms,...>        time between migrations, default 2000\n"
+            + "  -bounces <ms,ms,...>          how long a vacated server is down, -1 to leave it up, default 1000\n"
+            + "  -seconds <n>                  how long each configuration publishes, default 10\n"
+            + "  -out <dir>                    directory for the report and logs, default migration-report\n"
+            + "\nExits with status 1 if any configuration lost messages.\n";
+
+    static final private int NANOSPERSEC = 1000000000;
+
+    // client, cluster and monitoring ports of the two servers, as in
+    // scripts/migrate_test.sh.
+    static final private int[] PORTS = {4222, 4333};
+    static final private int[] CLUSTER_PORTS = {6222, 6333};
+    static final private int[] MONITOR_PORTS = {8222, 8333};
+
+    static final private long READY_TIMEOUT_MILLIS = 10000;
+    static final private long MIGRATE_TIMEOUT_MILLIS = 15000;
+    static final private long STALL_MILLIS = 10000;
+
+    /**
+     * The two servers the applications migrate between.
+     */
+    interface Servers extends AutoCloseable {
+        void start(int i) throws Exception;
+
+        void stop(int i) throws Exception;
+
+        boolean running(int i);
+
+        default String url(int i) {
+            return "nats://127.0.0.1:" + PORTS[i];
+        }
+
+        @Override
+        void close() throws IOException;
+    }
+
+    /**
+     * nats-server processes, routed to each other.
+     */
+    static class NatsServers implements Servers {
+        private final File dir;
+        private final Process[] procs = new Process[PORTS.length];
+
+        NatsServers(File dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        public void start(int i) throws Exception {
+            int other = (i + 1) % PORTS.length;
+            ProcessBuilder pb = new ProcessBuilder("nats-server", "-p", Integer.toString(PORTS[i]),
+                "-m", Integer.toString(MONITOR_PORTS[i]),
+                "--cluster", "nats://127.0.0.1:" + CLUSTER_PORTS[i],
+                "--routes", "nats://127.0.0.1:" + CLUSTER_PORTS[other]);
+            pb.redirectErrorStream(true);
+            pb.redirectOutput(ProcessBuilder.Redirect.appendTo(new File(dir, "nats-server-" + PORTS[i] + ".log")));
+            procs[i] = pb.start();
+            awaitListening(PORTS[i]);
+            if (running(other)) {
+                awaitRoutes(i);
+                awaitRoutes(other);
+            }
+        }
+
+        @Override
+        public void stop(int i) throws Exception {
+            Process p = procs[i];
+            procs[i] = null;
+            if (p != null) {
+                p.destroy();
+                if (!p.waitFor(READY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    p.destroyForcibly().waitFor();
+                }
+            }
+        }
+
+        @Override
+        public boolean running(int i) {
+            return procs[i] != null && procs[i].isAlive();
+        }
+
+        // Polls the monitoring endpoint until the server has a route.
+        private void awaitRoutes(int i) throws Exception {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(READY_TIMEOUT_MILLIS);
+            while (true) {
+                try {
+                    if (ServerMonitor.field("http://127.0.0.1:" + MONITOR_PORTS[i], "/routez", "num_routes", 1000) > 0) {
+                        return;
+                    }
+                } catch (IOException e) {
+                    // not serving yet.
+                }
+                if (System.nanoTime() > deadline) {
+                    throw new IllegalStateException("server on " + PORTS[i] + " didn't join the cluster");
+                }
+                Thread.sleep(50);
+            }
+        }
+
+        @Override
+        public void close() {
+            for (Process p : procs) {
+                if (p != null) {
+                    p.destroy();
+                }
+            }
+        }
+    }
+
+    /**
+     * The in-process stand-in, for machines without nats-server.  Its ports
+     * share subscriptions, so they behave as an instantly routed cluster.
+     */
+    static class LocalServers implements Servers {
+        private final LocalNatsServer server;
+        private final boolean[] up = new boolean[PORTS.length];
+
+        LocalServers() throws IOException {
+            server = new LocalNatsServer();
+        }
+
+        @Override
+        public void start(int i) throws Exception {
+            server.start(PORTS[i]);
+            up[i] = true;
+            awaitListening(PORTS[i]);
+        }
+
+        @Override
+        public void stop(int i) throws Exception {
+            server.stop(PORTS[i]);
+            up[i] = false;
+        }
+
+        @Override
+        public boolean running(int i) {
+            return up[i];
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+        }
+    }
+
+    static void awaitListening(int port) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(READY_TIMEOUT_MILLIS);
+        while (true) {
+            try (Socket s = new Socket()) {
+                s.connect(new InetSocketAddress("127.0.0.1", port), 100);
+                return;
+            } catch (IOException e) {
+                if (System.nanoTime() > deadline) {
+                    throw new IllegalStateException("nothing listening on " + port);
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    // One migration command and its reply.
+    static class Migration {
+        final String app;
+        final String url;
+        String reply;
+        double took;
+        double propagation;
+
+        Migration(String app, String url) {
+            this.app = app;
+            this.url = url;
+        }
+
+        boolean ok() {
+            return reply != null && reply.startsWith("+OK");
+        }
+    }
+
+    // One configuration of the sweep and its results.
+    static class Run {
+        final int rate;
+        final int size;
+        final long interval;
+        final long bounce;
+        final int count;
+
+        final List<Migration> migrations = new ArrayList<>();
+        int expected;
+        long received;
+        long duplicates;
+        double publishRate;
+        double receiveRate;
+        long[] blackouts = new long[0];
+
+        Run(int rate, int size, long interval, long bounce, int seconds) {
+            this.rate = rate;
+            this.size = size;
+            this.interval = interval;
+            this.bounce = bounce;
+            this.count = (int)Math.min(Integer.MAX_VALUE, (long)rate * seconds);
+        }
+
+        long lost() {
+            return Math.max(0, count - (received - duplicates));
+        }
+
+        boolean passed() {
+            return expected == count && lost() == 0;
+        }
+
+        String toJson() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("{\"rate\":%d,\"size\":%d,\"interval_ms\":%d,\"bounce_ms\":%d,", rate, size, interval, bounce));
+            sb.append(String.format("\"sent\":%d,\"received\":%d,\"duplicates\":%d,\"lost\":%d,\"loss_pct\":%.6f,",
+                count, received, duplicates, lost(), 100.0 * lost() / count));
+            sb.append(String.format("\"publish_rate\":%.1f,\"receive_rate\":%.1f,\"migrations\":[", publishRate, receiveRate));
+            for (int i = 0; i < migrations.size(); i++) {
+                Migration m = migrations.get(i);
+                sb.append(i == 0 ? "" : ",");
+                sb.append(String.format("{\"app\":\"%s\",\"url\":\"%s\",\"ok\":%b,\"took_ms\":%.3f,\"propagation_ms\":%.3f}",
+                    m.app, m.url, m.ok(), m.took, m.propagation));
+            }
+            sb.append("],\"blackouts_ms\":[");
+            long max = 0;
+            for (int i = 0; i < blackouts.length; i++) {
+                sb.append(i == 0 ? "" : ",").append(String.format("%.3f", blackouts[i] / 1000000.0));
+                max = Math.max(max, blackouts[i]);
+            }
+            sb.append(String.format("],\"max_blackout_ms\":%.3f,\"passed\":%b}", max / 1000000.0, passed()));
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Where System.out and System.err go during a sweep: the current run's
+     * log, which stays open until the next run starts, so the applications'
+     * threads can finish printing after a run is over.
+     */
+    static class RunLogs extends OutputStream {
+        private OutputStream current;
+
+        synchronized void open(File f) throws IOException {
+            close();
+            current = new FileOutputStream(f);
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            if (current != null) {
+                current.write(b);
+            }
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (current != null) {
+                current.write(b, off, len);
+            }
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            if (current != null) {
+                current.flush();
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+        }
+    }
+
+    private final Servers servers;
+    private final File dir;
+    private final PrintStream out;
+    private final RunLogs logs;
+    private int runs;
+
+    /**
+     * Runs configurations on servers, writing results to dir and progress
+     * to out.  The caller sends System.out and System.err to logs.
+     */
+    public MigrationHarness(Servers servers, File dir, PrintStream out, RunLogs logs) {
+        this.servers = servers;
+        this.dir = dir;
+        this.out = out;
+        this.logs = logs;
+    }
+
+    /**
+     * Runs one configuration: the applications start on the first server
+     * and move to the other every interval until the publisher is done.
+     * Their output goes to the configuration's log.
+     */
+    Run run(Run r) throws Exception {
+        for (int i = 0; i < PORTS.length; i++) {
+            if (!servers.running(i)) {
+                servers.start(i);
+            }
+        }
+        runs++;
+        String subject = "harness." + runs;
+        logs.open(new File(dir, String.format("run-%d.log", runs)));
+        Options opts = new Options.Builder().servers(new String[] {servers.url(0), servers.url(1)})
+            .connectionName("MigrationHarness").maxReconnects(-1).build();
+
+        Connection nc = Nats.connect(opts);
+        try {
+            NatsLossSubscriber sub = new NatsLossSubscriber(servers.url(0), subject);
+            sub.setInstanceId("harness-sub");
+            sub.setLatencyInterval(0);
+            sub.setStallTimeout(STALL_MILLIS);
+            NatsLossPublisher pub = new NatsLossPublisher(servers.url(0), r.count, r.rate, subject, r.size);
+            pub.setInstanceId("harness-pub");
+
+            Thread subThread = new Thread(() -> {
+                try {
+                    sub.Run();
+                } catch (Exception e) {
+                    e.printStackTrace(System.out);
+                }
+            }, "harness-subscriber");
+            subThread.start();
+            if (!sub.readyLatch.await(READY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                throw new IllegalStateException("the subscriber didn't start");
+            }
+
+            Thread pubThread = new Thread(pub::Run, "harness-publisher");
+            pubThread.start();
+            sub.startLatch.await(READY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+
+            int at = 0;
+            while (true) {
+                pubThread.join(r.interval);
+                if (!pubThread.isAlive()) {
+                    break;
+                }
+                int to = (at + 1) % PORTS.length;
+                for (String app : new String[] {"subscriber", "publisher"}) {
+                    Migration m = migrate(nc, app, servers.url(to), pubThread);
+                    if (m != null) {
+                        r.migrations.add(m);
+                    }
+                }
+                if (r.bounce >= 0 && pubThread.isAlive()) {
+                    servers.stop(at);
+                    Thread.sleep(r.bounce);
+                    servers.start(at);
+                }
+                at = to;
+            }
+
+            // the subscriber ends on the publisher's end of stream, or
+            // once it has waited out the stall timeout.
+            subThread.join(STALL_MILLIS + 2 * READY_TIMEOUT_MILLIS);
+            if (subThread.isAlive()) {
+                sub.startLatch.countDown();
+                sub.stopLatch.countDown();
+                subThread.join();
+            }
+
+            r.expected = sub.expected();
+            r.received = sub.received();
+            r.duplicates = sub.duplicates();
+            r.receiveRate = sub.receiveRate();
+            r.blackouts = sub.blackouts();
+            r.publishRate = pub.publishRate();
+        } finally {
+            nc.close();
+        }
+        return r;
+    }
+
+    // Sends a migration command to the harness' instance of app and waits
+    // for its reply.  Returns null if the publisher finished first, since
+    // the applications stop taking commands as they shut down.
+    private Migration migrate(Connection nc, String app, String url, Thread pubThread) throws InterruptedException {
+        if (!pubThread.isAlive()) {
+            return null;
+        }
+        Migration m = new Migration(app, url);
+        String subject = ControlPlane.MIGRATE_PREFIX + app + ".harness-" + (app.equals("subscriber") ? "sub" : "pub");
+        CompletableFuture<Message> f = nc.request(subject, url.getBytes(StandardCharsets.UTF_8));
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MIGRATE_TIMEOUT_MILLIS);
+        try {
+            Message reply = null;
+            while (reply == null) {
+                try {
+                    reply = f.get(100, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    if (!pubThread.isAlive()) {
+                        f.cancel(true);
+                        return null;
+                    }
+                    if (System.nanoTime() > deadline) {
+                        throw e;
+                    }
+                }
+            }
+            m.reply = new String(reply.getData(), StandardCharsets.UTF_8);
+            Map<String, String> kv = FleetCoordinator.parseReply(reply);
+            m.took = Double.parseDouble(kv.getOrDefault("took", "0"));
+            m.propagation = Double.parseDouble(kv.getOrDefault("propagation", "0"));
+        } catch (ExecutionException | TimeoutException e) {
+            m.reply = "+ERR " + e;
+        }
+        if (!m.ok() && !pubThread.isAlive()) {
+            return null;
+        }
+        return m;
+    }
+
+    /**
+     * Runs every configuration in the sweep, appending each result to the
+     * report.  Returns false if any lost messages.
+     */
+    boolean sweep(int[] rates, int[] sizes, long[] intervals, long[] bounces, int seconds) throws Exception {
+        File report = new File(dir, "sweep.jsonl");
+        List<Run> results = new ArrayList<>();
+        boolean ok = true;
+        try (Writer w = Files.newBufferedWriter(report.toPath(), StandardCharsets.UTF_8)) {
+            for (int size : sizes) {
+                for (long interval : intervals) {
+                    for (long bounce : bounces) {
+                        for (int rate : rates) {
+                            Run r = new Run(rate, size, interval, bounce, seconds);
+                            out.printf("Run %d: %d msgs/sec of %d bytes for %ds, migrating every %d ms, %s... ",
+                                runs + 1, rate, size, seconds, interval,
+                                bounce < 0 ? "no bounces" : "bouncing for " + bounce + " ms");
+                            long start = System.nanoTime();
+                            run(r);
+                            out.printf("%s, lost %d of %d, %d migrations in %.1fs\n", r.passed() ? "passed" : "FAILED",
+                                r.lost(), r.count, r.migrations.size(), (double)(System.nanoTime() - start) / NANOSPERSEC);
+                            w.write(r.toJson());
+                            w.write("\n");
+                            w.flush();
+                            results.add(r);
+                            ok &= r.passed();
+                        }
+                    }
+                }
+            }
+        }
+        out.printf("\nReport written to %s\n", report);
+        summarize(results);
+        return ok;
+    }
+
+    // For each size, interval and bounce, prints the highest rate that
+    // didn't lose messages.
+    private void summarize(List<Run> results) {
+        List<String> seen = new ArrayList<>();
+        for (Run r : results) {
+            String key = r.size + "/" + r.interval + "/" + r.bounce;
+            if (seen.contains(key)) {
+                continue;
+            }
+            seen.add(key);
+            int best = -1;
+            int firstLoss = -1;
+            for (Run o : results) {
+                if (o.size != r.size || o.interval != r.interval || o.bounce != r.bounce) {
+                    continue;
+                }
+                if (o.passed()) {
+                    best = Math.max(best, o.rate);
+                } else if (firstLoss < 0 || o.rate < firstLoss) {
+                    firstLoss = o.rate;
+                }
+            }
+            out.printf("%d bytes, migrating every %d ms, %s: %s%s\n", r.size, r.interval,
+                r.bounce < 0 ? "no bounces" : r.bounce + " ms bounces",
+                best < 0 ? "lost messages at every rate" : "no loss up to " + best + " msgs/sec",
+                firstLoss < 0 ? "" : ", loss from " + firstLoss + " msgs/sec");
+        }
+    }
+
+    private static int[] ints(String s) {
+        String[] f = s.split(",");
+        int[] v = new int[f.length];
+        for (int i = 0; i < f.length; i++) {
+            v[i] = Integer.parseInt(f[i].trim());
+        }
+        return v;
+    }
+
+    private static long[] longs(String s) {
+        String[] f = s.split(",");
+        long[] v = new long[f.length];
+        for (int i = 0; i < f.length; i++) {
+            v[i] = Long.parseLong(f[i].trim());
+        }
+        return v;
+    }
+
+    public static void main(String args[]) {
+        String serverKind = "nats-server";
+        int[] rates = {10000};
+        int[] sizes = {128};
+        long[] intervals = {2000};
+        long[] bounces = {1000};
+        int seconds = 10;
+        File dir = new File("migration-report");
+
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 >= args.length) {
+                usage();
+            }
+            switch (args[i]) {
+                case "-servers":
+                    if (!"nats-server".equals(args[i+1]) && !"local".equals(args[i+1])) {
+                        usage();
+                    }
+                    serverKind = args[i+1];
+                    break;
+                case "-rates":
+                    rates = ints(args[i+1]);
+                    break;
+                case "-sizes":
+                    sizes = ints(args[i+1]);
+                    break;
+                case "-intervals":
+                    intervals = longs(args[i+1]);
+                    break;
+                case "-bounces":
+                    bounces = longs(args[i+1]);
+                    break;
+                case "-seconds":
+                    seconds = Integer.parseInt(args[i+1]);
+                    break;
+                case "-out":
+                    dir = new File(args[i+1]);
+                    break;
+                default:
+                    usage();
+            }
+        }
+        for (int size : sizes) {
+            if (size < Payload.HEADER_SIZE) {
+                System.err.printf("Error:  message sizes must be at least %d\n", Payload.HEADER_SIZE);
+                System.exit(1);
+            }
+        }
+        for (long interval : intervals) {
+            if (interval <= 0) {
+                System.err.println("Error:  migration intervals must be positive");
+                System.exit(1);
+            }
+        }
+        if (seconds < 1) {
+            System.err.println("Error:  each configuration needs to publish for at least a second");
+            System.exit(1);
+        }
+
+        boolean ok = false;
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        RunLogs logs = new RunLogs();
+        try {
+            dir.mkdirs();
+            try (Servers servers = "local".equals(serverKind) ? new LocalServers() : new NatsServers(dir)) {
+                MigrationHarness h = new MigrationHarness(servers, dir, out, logs);
+                PrintStream ps = new PrintStream(logs, true, "UTF-8");
+                System.setOut(ps);
+                System.setErr(ps);
+                ok = h.sweep(rates, sizes, intervals, bounces, seconds);
+            } finally {
+                System.setOut(out);
+                System.setErr(err);
+                logs.close();
+            }
+        } catch (Exception exp) {
+            exp.printStackTrace();
+        }
+        System.exit(ok ? 0 : 1);
+    }
+
+    static void usage() {
+        System.err.println(usageString);
+        System.exit(-1);
+    }
+}
@@ -0,0 +1,47 @@
+// Copyright 2020 Colin Sullivan
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package io.nats.java.examples;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The server benchmarks run against.  Set the nats.url system property to
+ * use a running nats-server, otherwise an in-process LocalNatsServer is
+ * started for the trial.
+ */
+@State(Scope.Benchmark)
+public class BenchmarkServer {
+
+    String url;
+    private LocalNatsServer local;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        url = System.getProperty("nats.url");
+        if (url == null || url.isEmpty()) {
+            local = new LocalNatsServer();
+            url = local.getURL(local.start(0));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws Exception {
+        if (local != null) {
+            local.close();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+// Copyright 2020 Colin Sullivan
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package io.nats.java.examples;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.nats.client.Connection;
+import io.nats.client.Nats;
+
+/**
+ * The publisher's migrate: swapping in new connections and draining the
+ * old ones.  With standby the new connection is established before each
+ * call, as the control plane's standby pool does, so only the swap and
+ * drain are measured; without it the connect is included.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MigrateBenchmark {
+
+    @Param({"true", "false"})
+    boolean standby;
+
+    String url;
+    NatsLossPublisher pub;
+    List<Connection> ready;
+
+    @Setup(Level.Trial)
+    public void setup(BenchmarkServer server) throws Exception {
+        url = server.url;
+        pub = new NatsLossPublisher(url, 0, 0, "bench.migrate", 128);
+        pub.connectAll();
+    }
+
+    @Setup(Level.Invocation)
+    public void connect() throws Exception {
+        ready = standby ? Collections.singletonList(Nats.connect(pub.getOptions(url))) : Collections.emptyList();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws Exception {
+        pub.closeAll();
+    }
+
+    @Benchmark
+    public Connection migrate() throws Exception {
+        return pub.lmh.migrate(new ControlPlane.Migration(url, ready, Runnable::run, stage -> { })).get();
+    }
+}
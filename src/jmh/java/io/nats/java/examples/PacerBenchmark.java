@@ -0,0 +1,66 @@
+// Copyright 2020 Colin Sullivan
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package io.nats.java.examples;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Pacing accuracy of the publisher's Pacer, which replaced
+ * simulateWorkDelay.  Each call paces 100ms worth of messages at the
+ * target rate, so a perfect pacer scores 100ms per op and the spread
+ * across iterations is its jitter.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, batchSize = 1)
+@Measurement(iterations = 20, batchSize = 1)
+public class PacerBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    int rate;
+
+    @Param({"constant", "poisson"})
+    String mode;
+
+    long perOp;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        perOp = rate / 10;
+    }
+
+    @Benchmark
+    public long pace() throws InterruptedException {
+        Pacer pacer = Pacer.create(mode, rate, 0);
+        long sent = 0;
+        while (sent < perOp) {
+            sent += Math.min(pacer.acquire(), perOp - sent);
+        }
+        return sent;
+    }
+}
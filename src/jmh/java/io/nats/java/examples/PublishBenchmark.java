@@ -0,0 +1,84 @@
+// Copyright 2020 Colin Sullivan
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package io.nats.java.examples;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * NatsLossPublisher.publish with several threads sharing the publisher's
+ * connections, as in the multi-worker mode.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(4)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PublishBenchmark {
+
+    @Param({"1", "4"})
+    int connections;
+
+    @Param({"128"})
+    int size;
+
+    NatsLossPublisher pub;
+    byte[] payload;
+
+    @Setup(Level.Trial)
+    public void setup(BenchmarkServer server) throws Exception {
+        pub = new NatsLossPublisher(server.url, 0, 0, "bench.publish", size);
+        pub.setConcurrency(connections, connections, false);
+        pub.connectAll();
+        payload = new byte[size];
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws Exception {
+        pub.closeAll();
+    }
+
+    @State(Scope.Thread)
+    public static class Worker {
+        int index;
+        private static int next;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            synchronized (Worker.class) {
+                index = next++;
+            }
+        }
+    }
+
+    @Benchmark
+    public void publish(Worker w) {
+        pub.publish(w.index % connections, "bench.publish", payload);
+    }
+}
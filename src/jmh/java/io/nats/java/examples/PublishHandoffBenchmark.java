@@ -0,0 +1,84 @@
+// Copyright 2020 Colin Sullivan
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package io.nats.java.examples;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.nats.client.Connection;
+
+/**
+ * NatsLossPublisher.publish from three threads while a fourth keeps
+ * migrating the publisher to the same server, so every publish races the
+ * connection handoff.  The publish rate here against PublishBenchmark's
+ * shows what migrations cost the publishers, and the migrate rate how long
+ * a migration waits for publishes on the old connection.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PublishHandoffBenchmark {
+
+    @Param({"128"})
+    int size;
+
+    String url;
+    NatsLossPublisher pub;
+    byte[] payload;
+
+    @Setup(Level.Trial)
+    public void setup(BenchmarkServer server) throws Exception {
+        url = server.url;
+        pub = new NatsLossPublisher(url, 0, 0, "bench.handoff", size);
+        pub.connectAll();
+        payload = new byte[size];
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws Exception {
+        pub.closeAll();
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(3)
+    public void publish() {
+        pub.publish(0, "bench.handoff", payload);
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public Connection migrate() throws Exception {
+        return pub.lmh.migrate(new ControlPlane.Migration(url, Collections.emptyList(), Runnable::run, stage -> { })).get();
+    }
+}
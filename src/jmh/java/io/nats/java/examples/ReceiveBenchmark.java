@@ -0,0 +1,104 @@
+// Copyright 2020 Colin Sullivan
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package io.nats.java.examples;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.nats.client.Connection;
+import io.nats.client.Message;
+import io.nats.client.Subscription;
+
+/**
+ * Per-message cost of a NatsLossSubscriber dispatcher's handler, with no
+ * connection involved.  Run with the gc profiler (the default for the jmh task) to
+ * see the allocation rate per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ReceiveBenchmark {
+
+    @Param({"128"})
+    int size;
+
+    // A message that hands out the same stamped payload every time.
+    static class BenchMessage implements Message {
+        final byte[] data;
+
+        BenchMessage(byte[] data) {
+            this.data = data;
+        }
+
+        public String getSubject() {
+            return "bench.receive";
+        }
+
+        public String getReplyTo() {
+            return null;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public Subscription getSubscription() {
+            return null;
+        }
+
+        public String getSID() {
+            return "1";
+        }
+
+        public Connection getConnection() {
+            return null;
+        }
+    }
+
+    NatsLossSubscriber sub;
+    NatsLossSubscriber.Receiver receiver;
+    BenchMessage msg;
+    long seq;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        sub = new NatsLossSubscriber("nats://localhost:4222", "bench.receive");
+        receiver = sub.newReceiver();
+        receiver.onMessage(new BenchMessage(Payload.start(1000000000)));
+        byte[] data = new byte[size];
+        Payload.stamp(data, 1, 0, 0, Payload.wallNanos());
+        msg = new BenchMessage(data);
+    }
+
+    @Benchmark
+    public void onMessage() throws Exception {
+        // keep the sequence in order so we measure the common path.
+        Payload.putLong(msg.data, 8, seq++);
+        receiver.onMessage(msg);
+    }
+}
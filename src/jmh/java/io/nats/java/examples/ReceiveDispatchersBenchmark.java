@@ -0,0 +1,110 @@
+// Copyright 2020 Colin Sullivan
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package io.nats.java.examples;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One subscriber receiving on several dispatchers at once, as while a
+ * migration has both the old and the new connections delivering.  Each
+ * thread is a dispatcher with its own handler and publisher.  Compare the
+ * throughput with -t 1, 2 and 4 to see how receiving scales.
+ *
+ * latencyShared and latencyStriped time just recording a latency, into one
+ * histogram for every dispatcher or into one each, as the subscriber does,
+ * to show what striping saves once dispatchers run on separate cores.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(4)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ReceiveDispatchersBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Subscriber {
+        @Param({"128"})
+        int size;
+
+        NatsLossSubscriber sub;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            sub = new NatsLossSubscriber("nats://localhost:4222", "bench.receive");
+            sub.newReceiver().onMessage(new ReceiveBenchmark.BenchMessage(Payload.start(1000000000)));
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Dispatcher {
+        NatsLossSubscriber.Receiver receiver;
+        ReceiveBenchmark.BenchMessage msg;
+        long seq;
+        private static int next;
+
+        @Setup(Level.Trial)
+        public void setup(Subscriber s) {
+            int id;
+            synchronized (Dispatcher.class) {
+                id = ++next;
+            }
+            receiver = s.sub.newReceiver();
+            byte[] data = new byte[s.size];
+            Payload.stamp(data, id, 0, 0, Payload.wallNanos());
+            msg = new ReceiveBenchmark.BenchMessage(data);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class SharedHistogram {
+        final LatencyHistogram histogram = new LatencyHistogram();
+    }
+
+    @State(Scope.Thread)
+    public static class StripedHistogram {
+        final LatencyHistogram histogram = new LatencyHistogram();
+    }
+
+    @Benchmark
+    public void onMessage(Dispatcher d) throws Exception {
+        // keep each dispatcher's sequence in order, as in ReceiveBenchmark.
+        Payload.putLong(d.msg.data, 8, d.seq++);
+        d.receiver.onMessage(d.msg);
+    }
+
+    // latencies around 100us, spread over a few buckets as real ones are.
+    @Benchmark
+    public void latencyShared(SharedHistogram h, Dispatcher d) {
+        h.histogram.record(100000 + (d.seq++ & 1023));
+    }
+
+    @Benchmark
+    public void latencyStriped(StripedHistogram h, Dispatcher d) {
+        h.histogram.record(100000 + (d.seq++ & 1023));
+    }
+}
@@ -0,0 +1,135 @@
+// Copyright 2020 Colin Sullivan
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.java.examples;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * The framing for packing many payloads into one NATS message, so small
+ * messages don't each pay the protocol's per-message overhead.
+ *
+ * Fields are big endian:
+ *
+ *   0  magic (4 bytes), "NLB1"
+ *   4  number of frames (4 bytes)
+ *   8  frames, each a length (4 bytes) followed by that many payload bytes
+ *
+ * A publisher id never starts with the magic (see isReserved), so a batch
+ * can't be mistaken for a single stamped payload, and a subscriber unpacks
+ * whatever it receives without being told the publisher is batching.
+ * Frames are read in place, as slices of the message's data.
+ */
+final class Batch {
+
+    static final int MAGIC = 0x4e4c4231;
+    static final int HEADER_SIZE = 8;
+    static final int FRAME_HEADER_SIZE = 4;
+
+    // the server's default max_payload.
+    static final int MAX_SIZE = 1024 * 1024;
+
+    private Batch() {
+    }
+
+    static boolean isBatch(byte[] b) {
+        return b.length >= HEADER_SIZE && Payload.getInt(b, 0) == MAGIC;
+    }
+
+    // true if a publisher id would make its payloads look like batches.
+    static boolean isReserved(long publisherId) {
+        return (int)(publisherId >>> 32) == MAGIC;
+    }
+
+    static int frames(byte[] b) {
+        return Payload.getInt(b, 4);
+    }
+
+    // The length of the frame whose header is at off; its payload follows
+    // the header.
+    static int frameLength(byte[] b, int off) {
+        return Payload.getInt(b, off);
+    }
+
+    /**
+     * Packs payloads for one subject into batches of up to limit bytes.
+     * A batch is sent when the next payload doesn't fit, or by
+     * flushIfLingering() once its first payload has waited lingerNanos.
+     * Payloads too large for a batch of their own are sent unpacked.
+     *
+     * Payloads are written straight into the batch buffer, and each batch
+     * is copied out once to be sent, since the client keeps the array it
+     * is given.  Used by a publishing worker and the linger timer.
+     */
+    static final class Writer {
+        private final int limit;
+        private final long lingerNanos;
+        private final Consumer<byte[]> sink;
+        private final byte[] buf;
+        private int size = HEADER_SIZE;
+        private int frames;
+        private long opened;
+
+        Writer(int limit, long lingerNanos, Consumer<byte[]> sink) {
+            this.limit = limit;
+            this.lingerNanos = lingerNanos;
+            this.sink = sink;
+            this.buf = new byte[limit];
+        }
+
+        /**
+         * Adds the generator's payload for the given message, sending the
+         * batch first if the payload doesn't fit.  Returns the payload's
+         * size.
+         */
+        synchronized int add(PayloadGenerator g, long publisherId, long sequence, int epoch) {
+            int len = g.size(sequence);
+            if (HEADER_SIZE + FRAME_HEADER_SIZE + len > limit) {
+                flush();
+                sink.accept(g.next(publisherId, sequence, epoch));
+                return len;
+            }
+            if (size + FRAME_HEADER_SIZE + len > limit) {
+                flush();
+            }
+            if (frames == 0) {
+                opened = System.nanoTime();
+            }
+            Payload.putInt(buf, size, len);
+            g.write(buf, size + FRAME_HEADER_SIZE, publisherId, sequence, epoch);
+            size += FRAME_HEADER_SIZE + len;
+            frames++;
+            return len;
+        }
+
+        // Sends the batch, if it holds anything.
+        synchronized void flush() {
+            if (frames == 0) {
+                return;
+            }
+            Payload.putInt(buf, 0, MAGIC);
+            Payload.putInt(buf, 4, frames);
+            byte[] b = Arrays.copyOf(buf, size);
+            size = HEADER_SIZE;
+            frames = 0;
+            sink.accept(b);
+        }
+
+        synchronized void flushIfLingering(long now) {
+            if (frames > 0 && now - opened >= lingerNanos) {
+                flush();
+            }
+        }
+    }
+}
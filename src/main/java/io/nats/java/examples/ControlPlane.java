@@ -12,80 +12,572 @@
 // limitations under the License.
 package io.nats.java.examples;
 
+import java.lang.management.ManagementFactory;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import io.nats.client.Connection;
 import io.nats.client.Dispatcher;
 import io.nats.client.Message;
 import io.nats.client.MessageHandler;
 
+/**
+ * Listens for migration requests for an application.
+ *
+ * Every instance subscribes to control.migrate.<tag>, which migrates the
+ * whole fleet at once, and to control.migrate.<tag>.<instanceId>, which
+ * migrates just that instance.  Instances answer requests on
+ * control.discover.<tag> with their id and server, which is how the
+ * FleetCoordinator finds them to migrate in waves.  Monitor the fleet's
+ * migrations with a subscription to control.migrate.<tag>.> or
+ * control.migrate.>.
+ *
+ * Migrations run on the control plane's own thread, so the dispatcher is
+ * always free to take the next command.  A request with a new url
+ * supersedes a migration in flight, and a request with the body "cancel"
+ * cancels it.  Either interrupts what the migration is waiting on, e.g.
+ * connecting to its server or waiting for interest to propagate, so it
+ * stops promptly, up to its last checkpoint before it swaps connections;
+ * after that it runs to completion.  Each stage of a migration is
+ * published to control.progress.<tag>.<instanceId> as it happens.
+ *
+ * A successful migration is answered with "+OK" followed by key=value
+ * pairs: the instance, the time the migration took, and the time spent
+ * waiting for interest to propagate, in milliseconds.  A failure is
+ * answered with "+ERR" and the reason.
+ *
+ * The body of a migration request may also be a comma separated list of
+ * candidate servers.  The control plane then probes them with a
+ * TargetSelector, migrates to the best, and adds the chosen server and the
+ * candidates' scores to the +OK reply.
+ *
+ * An application can also watch every migration command sent to any
+ * application, e.g. to line up its own behaviour with the fleet's
+ * migrations, with watchCommands().
+ */
 public class ControlPlane {
+    static final String MIGRATE_PREFIX = "control.migrate.";
+    static final String DISCOVER_PREFIX = "control.discover.";
+    static final String PROGRESS_PREFIX = "control.progress.";
+    static final String CANCEL = "cancel";
+
+    // how long close() waits for a cancelled migration to stop and reply.
+    static final private long CLOSE_TIMEOUT_MILLIS = 10000;
+
     String tag;
+    String instanceId;
+    volatile Connection conn;
     MigrationHandler h;
-    Dispatcher d;
+    volatile Dispatcher d;
+    StandbyPool standbys;
+    MigrationMetrics metrics;
+    volatile TargetSelector selector = new TargetSelector();
     ControlMigrationHandler cmh = new ControlMigrationHandler();
+    volatile CommandListener watcher;
+    volatile Dispatcher wd;
+
+    // runs migrations one at a time, off the dispatcher threads.
+    private final ExecutorService executor;
+
+    // the migration in flight, if any.
+    private Migration current;
 
     public interface MigrationHandler {
 
-        // migrates current connection to the specified url
-        // Return the new connection so the control plane can
-        // resubscribe.
-        public Connection migrate(String url) throws Exception;
+        // Starts migrating the current connection to m.url(), and completes
+        // with the new connection so the control plane can resubscribe.
+        // m.ready() holds connections to the url that the control plane
+        // already has established; use them before connecting.  Call
+        // m.checkCancelled() before each step up to the swap and m.commit()
+        // just before it, and report progress with m.progress().  Up to
+        // the commit, a cancel interrupts the migration's thread.
+        public CompletableFuture<Connection> migrate(Migration m);
 
         // handles fatal errors generated by the migration process.
         public void errorHandler(Exception e);
     }
 
+    // Told of each command on control.migrate.>, with the subject, the body
+    // and the time it arrived, on a dispatcher thread.
+    public interface CommandListener {
+        void command(String subject, String body, long nanos);
+    }
+
+    // Work a handler runs on the control plane thread via Migration.submit.
+    public interface MigrationTask {
+        Connection run() throws Exception;
+    }
+
+    /**
+     * One requested migration, as seen by a MigrationHandler.
+     */
+    public static class Migration {
+        private volatile String url;
+        private final List<String> candidates;
+        private final Executor executor;
+        private final Consumer<String> progress;
+        private List<Connection> ready = Collections.emptyList();
+        private volatile String cancelled;
+        private TargetSelector.Selection selection;
+
+        // the thread running the migration, while it may be interrupted.
+        private Thread runner;
+        private boolean committed;
+
+        // progress receives each stage as it is reported.
+        public Migration(String url, List<Connection> ready, Executor executor, Consumer<String> progress) {
+            this(url, Collections.singletonList(url), ready, executor, progress);
+        }
+
+        // A migration to the best of candidates; url describes them until
+        // one is selected.
+        Migration(String url, List<String> candidates, List<Connection> ready, Executor executor, Consumer<String> progress) {
+            this.url = url;
+            this.candidates = candidates;
+            this.ready = ready;
+            this.executor = executor;
+            this.progress = progress;
+        }
+
+        public String url() {
+            return url;
+        }
+
+        List<String> candidates() {
+            return candidates;
+        }
+
+        // Migrates to the selection's best candidate.
+        void select(TargetSelector.Selection s) {
+            selection = s;
+            url = s.best.url;
+        }
+
+        TargetSelector.Selection selection() {
+            return selection;
+        }
+
+        public List<Connection> ready() {
+            return ready;
+        }
+
+        public void progress(String stage) {
+            progress.accept(stage);
+        }
+
+        // Asks the migration to stop, interrupting whatever it is waiting
+        // on unless it is past its last checkpoint.
+        synchronized void cancel(String reason) {
+            cancelled = reason;
+            if (runner != null && !committed) {
+                runner.interrupt();
+            }
+        }
+
+        public boolean isCancelled() {
+            return cancelled != null;
+        }
+
+        // Throws CancellationException if the migration was cancelled or
+        // superseded.
+        public void checkCancelled() {
+            if (cancelled != null) {
+                throw new CancellationException(cancelled);
+            }
+        }
+
+        /**
+         * The last checkpoint, just before the swap: throws
+         * CancellationException if the migration was cancelled, and from
+         * then on it can no longer be cancelled or interrupted.
+         */
+        public synchronized void commit() {
+            checkCancelled();
+            committed = true;
+        }
+
+        // Marks the current thread as running the migration, so a cancel
+        // can interrupt it.
+        private synchronized void enter() {
+            runner = Thread.currentThread();
+        }
+
+        // Returns the cause to fail the migration with: a cancellation if
+        // it was cancelled before the commit, whatever its interrupted
+        // step threw.
+        private synchronized Throwable failure(Throwable e) {
+            return cancelled != null && !committed ? new CancellationException(cancelled) : e;
+        }
+
+        private void exit() {
+            synchronized (this) {
+                runner = null;
+            }
+            // don't leave a late interrupt for the next task on the thread.
+            Thread.interrupted();
+        }
+
+        /**
+         * Runs task on the control plane thread and completes with its
+         * result, unless the migration is cancelled before it starts.
+         */
+        public CompletableFuture<Connection> submit(MigrationTask task) {
+            CompletableFuture<Connection> f = new CompletableFuture<>();
+            executor.execute(() -> {
+                enter();
+                try {
+                    checkCancelled();
+                    f.complete(task.run());
+                } catch (Throwable e) {
+                    f.completeExceptionally(failure(e));
+                } finally {
+                    exit();
+                }
+            });
+            return f;
+        }
+    }
+
     // This is a migration handler; add additional handlers as necessary.
+    // It only hands work to the control plane thread, so it never blocks.
     private class ControlMigrationHandler implements MessageHandler {
 
         @Override
-        public void onMessage(Message msg) throws InterruptedException {
-            Connection nc = null;
+        public void onMessage(Message msg) {
+            if (msg.getSubject().startsWith(DISCOVER_PREFIX)) {
+                attemptReply(conn, msg.getReplyTo(), "+OK instance=" + instanceId + " server=" + conn.getConnectedUrl());
+                return;
+            }
+
             byte[] data = msg.getData();
-            String url = (data.length == 0) ? "nats://localhost:4222" :  new String(data, StandardCharsets.UTF_8);
-    
+            String body = (data.length == 0) ? "nats://localhost:4222" :  new String(data, StandardCharsets.UTF_8);
+            String replyTo = msg.getReplyTo();
+
+            if (CANCEL.equals(body)) {
+                Migration m;
+                synchronized (ControlPlane.this) {
+                    m = current;
+                    if (m != null) {
+                        m.cancel("cancelled");
+                    }
+                }
+                attemptReply(conn, replyTo, m == null ? "+ERR no migration in progress" : "+OK cancelling migration to " + m.url());
+                return;
+            }
+
+            String url = body;
+            List<String> candidates = Arrays.asList(body.split("\\s*,\\s*"));
+            Migration[] holder = new Migration[1];
+            Migration m = new Migration(url, candidates, Collections.emptyList(), executor,
+                stage -> publishProgress(stage + " " + holder[0].url()));
+            holder[0] = m;
+            synchronized (ControlPlane.this) {
+                if (current != null) {
+                    current.cancel("superseded by migration to " + url);
+                }
+                current = m;
+            }
+            m.progress("accepted");
             try {
-                nc = h.migrate(url);
-                setupMessageHandling(nc);
-                attemptReply(nc, msg, "+OK");
+                executor.execute(() -> start(m, replyTo));
+            } catch (RejectedExecutionException e) {
+                attemptReply(conn, replyTo, "+ERR the control plane is closed");
+            }
+        }
+    }
+
+    // Takes any standby connections and starts the handler's migration.
+    private void start(Migration m, String replyTo) {
+        long start = System.nanoTime();
+        long propagation = metrics.propagation.totalNanos();
+        CompletableFuture<Connection> f;
+        m.enter();
+        try {
+            m.checkCancelled();
+            if (m.candidates().size() > 1) {
+                select(m);
             }
-            catch (Exception e) {
-                h.errorHandler(e);
-                attemptReply(nc, msg, "+ERR " + e.getMessage());
+            if (standbys != null) {
+                m.ready = standbys.take(m.url());
+                if (!m.ready.isEmpty()) {
+                    metrics.standbysTaken.add(m.ready.size());
+                    System.out.printf("Took %d standby connections to %s in %.3f us, saving about %.3f ms of connect time.\n",
+                        m.ready.size(), m.url(), (System.nanoTime() - start) / 1000.0, standbys.connectTime(m.url()) / 1000000.0);
+                }
             }
+            f = h.migrate(m);
+        } catch (Exception e) {
+            f = new CompletableFuture<>();
+            f.completeExceptionally(m.failure(e));
+        } finally {
+            m.exit();
+        }
+        f.whenComplete((nc, e) -> execute(() -> finish(m, replyTo, nc, e, start, propagation)));
+    }
+
+    // Runs task on the control plane thread, or on the calling one once
+    // close() has shut that down, so a migration that ends during the
+    // close is still answered.
+    private void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    // Probes the candidates and points the migration at the best of them.
+    private void select(Migration m) throws InterruptedException {
+        m.progress("probing");
+        TargetSelector.Selection s = selector.select(m.candidates());
+        if (s.best == null) {
+            throw new IllegalStateException("no candidate is reachable: " + s.describe());
+        }
+        System.out.printf("Selected %s from %d candidates in %.3f ms (%d cached): %s\n", s.best.url, s.probes.size(),
+            s.nanos / 1000000.0, s.cached, s.describe());
+        m.select(s);
+        m.progress("selected");
+        m.checkCancelled();
+    }
+
+    /**
+     * Picks among the candidates of requests that list several with s,
+     * e.g. one that probes with the application's options.
+     */
+    public void setTargetSelector(TargetSelector s) {
+        TargetSelector old = selector;
+        selector = s;
+        old.close();
+    }
+
+    /**
+     * Stops taking commands, cancels any migration in flight, waits for it
+     * to stop and be answered, and shuts down the control plane's thread
+     * and its target selector.  The application's connections are left to
+     * the application.
+     */
+    public void close() {
+        synchronized (this) {
+            if (current != null) {
+                current.cancel("cancelled, the control plane is closing");
+            }
+        }
+        Connection c = conn;
+        Dispatcher[] ds = {d, wd};
+        for (Dispatcher dispatcher : ds) {
+            if (dispatcher != null) {
+                try {
+                    c.closeDispatcher(dispatcher);
+                } catch (Exception e) {
+                    // NOOP, the connection is already closing.
+                }
+            }
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        selector.close();
+    }
+
+    private void finish(Migration m, String replyTo, Connection nc, Throwable e, long start, long propagation) {
+        synchronized (this) {
+            if (current == m) {
+                current = null;
+            }
+        }
+        if (e instanceof CompletionException && e.getCause() != null) {
+            e = e.getCause();
+        }
+
+        if (e == null) {
+            long elapsed = System.nanoTime() - start;
+            propagation = metrics.propagation.totalNanos() - propagation;
+            metrics.migration.record(elapsed);
+            metrics.migrationsOk.increment();
+            System.out.printf("Migration to %s took %.3f ms.\n", m.url(), elapsed / 1000000.0);
+            setupMessageHandling(nc);
+            m.progress("done");
+            TargetSelector.Selection s = m.selection();
+            attemptReply(nc, replyTo, String.format("+OK instance=%s took=%.3f propagation=%.3f%s",
+                instanceId, elapsed / 1000000.0, propagation / 1000000.0, s == null ? "" : " " + s.reply()));
+        } else if (e instanceof CancellationException) {
+            // handlers only stop before the swap, so any standbys we took
+            // are unused or already closed.
+            for (Connection c : m.ready()) {
+                try {
+                    c.close();
+                } catch (InterruptedException ie) {
+                    // NOOP
+                }
+            }
+            metrics.migrationsCancelled.increment();
+            System.out.printf("Migration to %s %s.\n", m.url(), e.getMessage());
+            m.progress("cancelled");
+            attemptReply(conn, replyTo, "+ERR " + e.getMessage());
+        } else {
+            metrics.migrationsFailed.increment();
+            h.errorHandler(e instanceof Exception ? (Exception)e : new Exception(e));
+            m.progress("failed");
+            attemptReply(conn, replyTo, "+ERR " + e.getMessage());
+        }
+    }
+
+    /**
+     * Passes every migration command, for any application or instance, to
+     * listener as it arrives.  Commands for this instance are seen whether
+     * or not they are acted on.
+     */
+    public synchronized void watchCommands(CommandListener listener) throws Exception {
+        watcher = listener;
+        Connection c = conn;
+        Dispatcher nd = c.createDispatcher(this::watched);
+        nd.subscribe(MIGRATE_PREFIX + ">");
+        c.flush(Duration.ofSeconds(2));
+        wd = nd;
+    }
+
+    /**
+     * True if a watched command asks this instance to migrate: it is sent
+     * to the whole application or to this instance, and isn't a cancel.
+     */
+    public boolean isMigrationFor(String subject, String body) {
+        if (CANCEL.equals(body)) {
+            return false;
         }
+        return subject.equals(MIGRATE_PREFIX + tag) || subject.equals(MIGRATE_PREFIX + tag + "." + instanceId);
     }
 
-    private void setupMessageHandling(Connection c) throws Exception {
+    private void watched(Message msg) {
+        long now = System.nanoTime();
+        byte[] data = msg.getData();
+        watcher.command(msg.getSubject(), data == null ? "" : new String(data, StandardCharsets.UTF_8), now);
+    }
+
+    // Moves the control subscriptions to c and releases the old dispatcher.
+    private void setupMessageHandling(Connection c) {
         // use one dispatcher and filter on subjects as an easy way to single
         // thread handling of commands..
+        Connection oldConn = conn;
+        Dispatcher oldD = d;
+        if (c == oldConn && oldD != null) {
+            // still on the same connection; we are already subscribed.
+            return;
+        }
         try {
-            d = c.createDispatcher(cmh);
-            d.subscribe("control.migrate." + tag);
+            Dispatcher nd = c.createDispatcher(cmh);
+            nd.subscribe(MIGRATE_PREFIX + tag);
+            nd.subscribe(MIGRATE_PREFIX + tag + "." + instanceId);
+            nd.subscribe(DISCOVER_PREFIX + tag);
             c.flush(Duration.ofSeconds(2));
+            conn = c;
+            d = nd;
         } catch (Exception e) {
             h.errorHandler(e);
-        }       
+        }
+        if (oldD != null && oldConn != c) {
+            try {
+                oldConn.closeDispatcher(oldD);
+            } catch (Exception e) {
+                // NOOP, the old connection is already draining or closed.
+            }
+        }
+        synchronized (this) {
+            Dispatcher oldWd = wd;
+            if (oldWd != null && oldConn != c) {
+                try {
+                    Dispatcher nwd = c.createDispatcher(this::watched);
+                    nwd.subscribe(MIGRATE_PREFIX + ">");
+                    wd = nwd;
+                    oldConn.closeDispatcher(oldWd);
+                } catch (Exception e) {
+                    // NOOP, the old connection is already draining or closed.
+                }
+            }
+        }
+    }
+
+    private void publishProgress(String progress) {
+        try {
+            conn.publish(PROGRESS_PREFIX + tag + "." + instanceId, progress.getBytes(StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            // NOOP, progress is best effort.
+        }
     }
 
     public ControlPlane(Connection connection, MigrationHandler handler, String applicationTag) throws Exception {
+        this(connection, handler, applicationTag, null);
+    }
+
+    public ControlPlane(Connection connection, MigrationHandler handler, String applicationTag, StandbyPool standbyPool) throws Exception {
+        this(connection, handler, applicationTag, standbyPool, new MigrationMetrics(new Metrics(applicationTag)));
+    }
+
+    // standbyPool, if not null, supplies ready connections to migrations.
+    // Migrations are counted and timed in migrationMetrics.
+    public ControlPlane(Connection connection, MigrationHandler handler, String applicationTag, StandbyPool standbyPool,
+            MigrationMetrics migrationMetrics) throws Exception {
+        this(connection, handler, applicationTag, defaultInstanceId(), standbyPool, migrationMetrics);
+    }
+
+    // instance identifies this process within the fleet; it must be a
+    // single subject token.
+    public ControlPlane(Connection connection, MigrationHandler handler, String applicationTag, String instance,
+            StandbyPool standbyPool, MigrationMetrics migrationMetrics) throws Exception {
+        if (instance.isEmpty() || instance.matches(".*[.*> \\t].*")) {
+            throw new IllegalArgumentException("instance id must be a single subject token: " + instance);
+        }
         h = handler;
         tag = applicationTag;
+        instanceId = instance;
+        standbys = standbyPool;
+        metrics = migrationMetrics;
         cmh = new ControlMigrationHandler();
+        executor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "control-plane-" + applicationTag);
+            t.setDaemon(true);
+            return t;
+        });
         setupMessageHandling(connection);
+        System.out.printf("Control plane listening on %s%s and %s%s.%s\n", MIGRATE_PREFIX, tag, MIGRATE_PREFIX, tag, instanceId);
+    }
+
+    // <host>-<pid>, with dots replaced so it stays one subject token.
+    static String defaultInstanceId() {
+        // the runtime name is pid@host.
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        int at = name.indexOf('@');
+        String id = at < 0 ? name : name.substring(at + 1) + "-" + name.substring(0, at);
+        return id.replaceAll("[.*> \\t]", "-");
     }
 
-    private static void attemptReply(Connection c, Message ctrlMsg, String reply) {
-        if (c == null || ctrlMsg == null || reply == null) {
+    // Replies without waiting on a flush; the client writes the reply as
+    // soon as it can.
+    private static void attemptReply(Connection c, String replyTo, String reply) {
+        if (c == null || replyTo == null || reply == null) {
             return;
         }
         try {
-            c.publish(ctrlMsg.getReplyTo(), reply.getBytes(StandardCharsets.UTF_8));
-            c.flush(Duration.ofSeconds(5));
+            c.publish(replyTo, reply.getBytes(StandardCharsets.UTF_8));
         } catch (Exception e) {
             System.out.println("Error replying:  " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,329 @@
+// Copyright 2020 Colin Sullivan
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package io.nats.java.examples;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import io.nats.client.Connection;
+import io.nats.client.Dispatcher;
+import io.nats.client.Message;
+import io.nats.client.Nats;
+import io.nats.client.Options;
+
+/**
+ * Migrates a fleet of instances of an application to a server in waves,
+ * rather than all at once, so the target isn't hit by every instance's
+ * connects and subscriptions at the same moment.
+ *
+ * The coordinator finds the instances through the control plane's
+ * discovery subject, splits those not already on the target into waves,
+ * and migrates each wave through the instances' own control subjects with
+ * a limit on how many requests are in flight.  A wave only proceeds if the
+ * previous one was healthy: no more than the allowed number of +ERR
+ * replies or timeouts, and interest propagation within the limit.
+ */
+public class FleetCoordinator {
+
+    static final String usageString = "\nUsage: java FleetCoordinator <server> <tag> <target url> [options]\n"
+            + "\nOptions:\n"
+            + "  -wave <n>              instances migrated per wave, default 1\n"
+            + "  -concurrency <n>       migration requests in flight at once, default the wave size\n"
+            + "  -pause <ms>            pause between waves, default 1000\n"
+            + "  -maxErrors <n>         failed or timed out migrations tolerated per wave, default 0\n"
+            + "  -maxPropagation <ms>   halt if a wave's slowest interest propagation exceeds this, default no limit\n"
+            + "  -discover <ms>         how long to collect discovery replies, default 500\n"
+            + "  -timeout <ms>          how long to wait for each migration reply, default 10000\n"
+            + "\nExits with status 1 if a wave is unhealthy.\n";
+
+    // An instance that answered discovery.
+    static class Instance {
+        final String id;
+        final String server;
+
+        Instance(String id, String server) {
+            this.id = id;
+            this.server = server;
+        }
+    }
+
+    // The replies to one wave.
+    static class WaveResult {
+        int ok;
+        int errors;
+        int timeouts;
+        double maxTook;
+        double totalPropagation;
+        double maxPropagation;
+    }
+
+    private final Connection nc;
+    private final String tag;
+    private final String target;
+    private int waveSize = 1;
+    private int concurrency = 0;
+    private long pauseMillis = 1000;
+    private int maxErrors = 0;
+    private double maxPropagationMillis = 0;
+    private long discoverMillis = 500;
+    private long timeoutMillis = 10000;
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "fleet-timeouts");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public FleetCoordinator(Connection nc, String tag, String target) {
+        this.nc = nc;
+        this.tag = tag;
+        this.target = target;
+    }
+
+    // Migrates waveSize instances per wave with at most concurrency
+    // requests in flight (0 for the whole wave), pausing between waves.
+    public void setWaves(int waveSize, int concurrency, long pauseMillis) {
+        this.waveSize = waveSize;
+        this.concurrency = concurrency;
+        this.pauseMillis = pauseMillis;
+    }
+
+    // A wave is unhealthy if more than maxErrors of its migrations fail or
+    // time out, or if any propagation takes longer than maxPropagationMillis
+    // (0 for no limit).
+    public void setHealthGate(int maxErrors, double maxPropagationMillis) {
+        this.maxErrors = maxErrors;
+        this.maxPropagationMillis = maxPropagationMillis;
+    }
+
+    public void setTimeouts(long discoverMillis, long timeoutMillis) {
+        this.discoverMillis = discoverMillis;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Collects the instances that answer on control.discover.<tag> within
+     * the discovery window, sorted by id.
+     */
+    List<Instance> discover() throws Exception {
+        Map<String, Instance> found = Collections.synchronizedMap(new HashMap<>());
+        String inbox = nc.createInbox();
+        Dispatcher d = nc.createDispatcher(m -> {
+            Map<String, String> kv = parseReply(m);
+            if (kv.containsKey("instance")) {
+                found.put(kv.get("instance"), new Instance(kv.get("instance"), kv.get("server")));
+            }
+        });
+        d.subscribe(inbox);
+        nc.flush(Duration.ofSeconds(2));
+        nc.publish(ControlPlane.DISCOVER_PREFIX + tag, inbox, null);
+        nc.flush(Duration.ofSeconds(2));
+        Thread.sleep(discoverMillis);
+        nc.closeDispatcher(d);
+
+        List<Instance> instances;
+        synchronized (found) {
+            instances = new ArrayList<>(found.values());
+        }
+        instances.sort((a, b) -> a.id.compareTo(b.id));
+        return instances;
+    }
+
+    // Parses "+OK key=value ..." into a map; +ERR replies have no pairs.
+    static Map<String, String> parseReply(Message m) {
+        Map<String, String> kv = new LinkedHashMap<>();
+        String reply = m.getData() == null ? "" : new String(m.getData(), StandardCharsets.UTF_8);
+        for (String field : reply.split(" ")) {
+            int eq = field.indexOf('=');
+            if (eq > 0) {
+                kv.put(field.substring(0, eq), field.substring(eq + 1));
+            }
+        }
+        return kv;
+    }
+
+    /**
+     * Migrates one wave, with at most concurrency requests in flight, and
+     * waits for every reply or timeout.
+     */
+    WaveResult migrateWave(List<Instance> wave) throws InterruptedException {
+        WaveResult result = new WaveResult();
+        Semaphore inFlight = new Semaphore(concurrency > 0 ? concurrency : wave.size());
+        List<CompletableFuture<Message>> replies = new ArrayList<>();
+        byte[] body = target.getBytes(StandardCharsets.UTF_8);
+
+        for (Instance i : wave) {
+            inFlight.acquire();
+            CompletableFuture<Message> f = nc.request(ControlPlane.MIGRATE_PREFIX + tag + "." + i.id, body);
+            timer.schedule(() -> f.completeExceptionally(new TimeoutException()), timeoutMillis, TimeUnit.MILLISECONDS);
+            f.whenComplete((m, e) -> inFlight.release());
+            replies.add(f);
+        }
+
+        for (int n = 0; n < wave.size(); n++) {
+            String id = wave.get(n).id;
+            Message m;
+            try {
+                m = replies.get(n).get();
+            } catch (Exception e) {
+                result.timeouts++;
+                System.out.printf("  %s: no reply within %d ms\n", id, timeoutMillis);
+                continue;
+            }
+            String reply = new String(m.getData(), StandardCharsets.UTF_8);
+            if (!reply.startsWith("+OK")) {
+                result.errors++;
+                System.out.printf("  %s: %s\n", id, reply);
+                continue;
+            }
+            Map<String, String> kv = parseReply(m);
+            double took = Double.parseDouble(kv.getOrDefault("took", "0"));
+            double propagation = Double.parseDouble(kv.getOrDefault("propagation", "0"));
+            result.ok++;
+            result.maxTook = Math.max(result.maxTook, took);
+            result.totalPropagation += propagation;
+            result.maxPropagation = Math.max(result.maxPropagation, propagation);
+            System.out.printf("  %s: migrated in %.3f ms, interest propagated in %.3f ms\n", id, took, propagation);
+        }
+        return result;
+    }
+
+    // true if the wave passes the health gate.
+    boolean healthy(WaveResult r) {
+        if (r.errors + r.timeouts > maxErrors) {
+            return false;
+        }
+        return maxPropagationMillis <= 0 || r.maxPropagation <= maxPropagationMillis;
+    }
+
+    /**
+     * Discovers the fleet and migrates it in waves.  Returns false if a
+     * wave was unhealthy and the rollout halted.
+     */
+    public boolean run() throws Exception {
+        List<Instance> instances = discover();
+        List<Instance> pending = new ArrayList<>();
+        for (Instance i : instances) {
+            if (target.equals(i.server)) {
+                System.out.printf("Instance %s is already on %s.\n", i.id, target);
+            } else {
+                pending.add(i);
+            }
+        }
+        int waves = (pending.size() + waveSize - 1) / waveSize;
+        System.out.printf("Found %d %s instances, migrating %d to %s in %d waves of up to %d.\n",
+            instances.size(), tag, pending.size(), target, waves, waveSize);
+
+        for (int w = 0; w < waves; w++) {
+            List<Instance> wave = pending.subList(w * waveSize, Math.min(pending.size(), (w + 1) * waveSize));
+            System.out.printf("Wave %d of %d: %d instances.\n", w + 1, waves, wave.size());
+            long start = System.nanoTime();
+            WaveResult r = migrateWave(wave);
+            System.out.printf("Wave %d of %d: %d ok, %d errors, %d timeouts in %.3f ms; slowest migration %.3f ms, propagation mean %.3f ms max %.3f ms.\n",
+                w + 1, waves, r.ok, r.errors, r.timeouts, (System.nanoTime() - start) / 1000000.0, r.maxTook,
+                r.ok == 0 ? 0 : r.totalPropagation / r.ok, r.maxPropagation);
+            if (!healthy(r)) {
+                System.out.printf("Wave %d is unhealthy, halting with %d instances not migrated.\n",
+                    w + 1, pending.size() - (w + 1) * waveSize > 0 ? pending.size() - (w + 1) * waveSize : 0);
+                return false;
+            }
+            if (w + 1 < waves) {
+                Thread.sleep(pauseMillis);
+            }
+        }
+        System.out.println("Fleet migration complete.");
+        return true;
+    }
+
+    public static void main(String args[]) {
+        if (args.length < 3 || args[0].startsWith("-") || args[1].startsWith("-") || args[2].startsWith("-")) {
+            usage();
+        }
+        String server = args[0];
+        String tag = args[1];
+        String target = args[2];
+        int waveSize = 1;
+        int concurrency = 0;
+        long pause = 1000;
+        int maxErrors = 0;
+        double maxPropagation = 0;
+        long discover = 500;
+        long timeout = 10000;
+
+        for (int i = 3; i < args.length; i += 2) {
+            if (i + 1 >= args.length) {
+                usage();
+            }
+            switch (args[i]) {
+                case "-wave":
+                    waveSize = Integer.parseInt(args[i+1]);
+                    break;
+                case "-concurrency":
+                    concurrency = Integer.parseInt(args[i+1]);
+                    break;
+                case "-pause":
+                    pause = Long.parseLong(args[i+1]);
+                    break;
+                case "-maxErrors":
+                    maxErrors = Integer.parseInt(args[i+1]);
+                    break;
+                case "-maxPropagation":
+                    maxPropagation = Double.parseDouble(args[i+1]);
+                    break;
+                case "-discover":
+                    discover = Long.parseLong(args[i+1]);
+                    break;
+                case "-timeout":
+                    timeout = Long.parseLong(args[i+1]);
+                    break;
+                default:
+                    usage();
+            }
+        }
+        if (waveSize < 1) {
+            System.err.println("Error:  waves need at least one instance");
+            System.exit(1);
+        }
+
+        boolean ok = false;
+        try {
+            Connection nc = Nats.connect(new Options.Builder().server(server).connectionName("FleetCoordinator").build());
+            FleetCoordinator fc = new FleetCoordinator(nc, tag, target);
+            fc.setWaves(waveSize, concurrency, pause);
+            fc.setHealthGate(maxErrors, maxPropagation);
+            fc.setTimeouts(discover, timeout);
+            ok = fc.run();
+            nc.close();
+        } catch (Exception exp) {
+            exp.printStackTrace();
+        }
+        System.exit(ok ? 0 : 1);
+    }
+
+    static void usage() {
+        System.err.println(usageString);
+        System.exit(-1);
+    }
+}
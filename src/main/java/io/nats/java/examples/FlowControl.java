@@ -0,0 +1,200 @@
+// Copyright 2020 Colin Sullivan
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.java.examples;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+import io.nats.client.Connection;
+
+/**
+ * Holds publishers back when the client is buffering more than it can
+ * write.
+ *
+ * The client queues published messages without limit while connected, and
+ * while reconnecting it buffers them up to its reconnect buffer size and
+ * then refuses them.  The flow control watches the bytes published but not
+ * yet written, and the state of the publisher's connection, and pauses the
+ * publishing loop when they pass a limit: the limit itself while connected,
+ * or nearly the reconnect buffer while reconnecting.  Once paused, a
+ * publisher waits until its connection is up and the backlog is down to
+ * half the limit.
+ *
+ * The limit is a couple of seconds of the rate at which the connections
+ * have been observed to write, so the buffer is sized from what the server
+ * actually drains rather than a constant.  New connections use it as their
+ * reconnect buffer size.
+ *
+ * A publisher with a spool doesn't wait: it asks saturated() and spools
+ * what the client can't take, and replays it once ready().
+ */
+final class FlowControl {
+
+    static final private int NANOSPERSEC = 1000000000;
+
+    static final private long SAMPLE_NANOS = NANOSPERSEC / 10;
+    static final private long PAUSE_NANOS = 1000000;
+    static final private double BUFFER_SECONDS = 2.0;
+    static final private long MIN_LIMIT = 1L << 20;
+    static final private long MAX_LIMIT = 1L << 29;
+
+    // weight of the newest drain rate sample.
+    static final private double ALPHA = 0.2;
+
+    private final LongSupplier pending;
+    private final LongSupplier written;
+    private final Metrics.Timer pauses;
+
+    private volatile long limit;
+    private double drainRate;
+    private volatile long lastSample;
+    private long lastWritten;
+
+    /**
+     * pending supplies the bytes published but not yet written, written
+     * the bytes written so far, and each pause is recorded in pauses.  The
+     * limit starts from the expected rate in bytes per second.
+     */
+    FlowControl(double expectedRate, LongSupplier pending, LongSupplier written, Metrics.Timer pauses) {
+        this.pending = pending;
+        this.written = written;
+        this.pauses = pauses;
+        this.drainRate = expectedRate;
+        this.limit = clamp(expectedRate * BUFFER_SECONDS);
+    }
+
+    long limit() {
+        return limit;
+    }
+
+    // bytes per second the connections have been writing.
+    synchronized double drainRate() {
+        return drainRate;
+    }
+
+    long pauses() {
+        return pauses.count();
+    }
+
+    long throttledNanos() {
+        return pauses.totalNanos();
+    }
+
+    /**
+     * Waits while the client is holding too much for c, before a publisher
+     * sends its next batch on it.
+     */
+    void await(Connection c) throws InterruptedException {
+        long now = System.nanoTime();
+        sample(now);
+        if (!full(c)) {
+            return;
+        }
+        long start = now;
+        do {
+            LockSupport.parkNanos(PAUSE_NANOS);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            sample(System.nanoTime());
+        } while (!drained(c));
+        pauses.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Waits out a reconnect of c after the client refused a message because
+     * its reconnect buffer was full.  Returns true if c is connected again,
+     * so the message can be retried.
+     */
+    boolean awaitReconnect(Connection c) throws InterruptedException {
+        if (!reconnecting(c)) {
+            return false;
+        }
+        long start = System.nanoTime();
+        while (reconnecting(c)) {
+            LockSupport.parkNanos(PAUSE_NANOS);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        pauses.record(System.nanoTime() - start);
+        return c.getStatus() == Connection.Status.CONNECTED;
+    }
+
+    /**
+     * True if the client is holding too much for c, for publishers that
+     * set messages aside rather than wait.
+     */
+    boolean saturated(Connection c) {
+        sample(System.nanoTime());
+        return full(c);
+    }
+
+    /**
+     * True once c is connected and its backlog is down to half the limit,
+     * so what was set aside can be sent.
+     */
+    boolean ready(Connection c) {
+        sample(System.nanoTime());
+        return c.getStatus() == Connection.Status.CONNECTED && pending.getAsLong() <= limit / 2;
+    }
+
+    private static boolean reconnecting(Connection c) {
+        Connection.Status s = c.getStatus();
+        return s == Connection.Status.RECONNECTING || s == Connection.Status.DISCONNECTED;
+    }
+
+    private boolean full(Connection c) {
+        if (c.getStatus() == Connection.Status.CLOSED) {
+            return false;
+        }
+        long p = pending.getAsLong();
+        if (reconnecting(c)) {
+            // leave room for protocol overhead the estimate doesn't see.
+            return p >= Math.min(limit, c.getOptions().getReconnectBufferSize()) / 10 * 9;
+        }
+        return p > limit;
+    }
+
+    private boolean drained(Connection c) {
+        Connection.Status s = c.getStatus();
+        return s == Connection.Status.CLOSED || (s == Connection.Status.CONNECTED && pending.getAsLong() <= limit / 2);
+    }
+
+    // Folds the write rate since the last sample into the drain rate.
+    // Samples in which nothing was written, e.g. while reconnecting, say
+    // nothing about what the server can take and are skipped.
+    private void sample(long now) {
+        if (now - lastSample < SAMPLE_NANOS) {
+            return;
+        }
+        synchronized (this) {
+            if (now - lastSample < SAMPLE_NANOS) {
+                return;
+            }
+            long w = written.getAsLong();
+            if (lastSample != 0 && w > lastWritten) {
+                double rate = (double)(w - lastWritten) * NANOSPERSEC / (now - lastSample);
+                drainRate = drainRate == 0 ? rate : drainRate + ALPHA * (rate - drainRate);
+                limit = clamp(drainRate * BUFFER_SECONDS);
+            }
+            lastWritten = w;
+            lastSample = now;
+        }
+    }
+
+    private static long clamp(double bytes) {
+        return Math.max(MIN_LIMIT, Math.min(MAX_LIMIT, (long)bytes));
+    }
+}
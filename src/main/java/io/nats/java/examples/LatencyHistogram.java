@@ -0,0 +1,167 @@
+// Copyright 2020 Colin Sullivan
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.java.examples;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size, lock-free histogram of latencies in nanoseconds.
+ *
+ * Buckets are laid out like an HDR histogram: values below 256ns get a
+ * bucket each, and every power of two above that is split into 128 linear
+ * sub-buckets, so any recorded value is within 1% of its bucket.  Values
+ * are capped at 2^40ns (about 18 minutes).  Recording is one atomic
+ * increment and never allocates, so it can be called from any number of
+ * threads on the receive path.
+ *
+ * Counts only ever grow.  Reports over an interval or a window are made by
+ * taking snapshots and diffing them, so recording never needs to be paused
+ * or the histogram swapped.
+ */
+class LatencyHistogram {
+
+    static final private int SUB_BITS = 7;
+    static final private int SUB_COUNT = 1 << SUB_BITS;
+    static final private int LINEAR = SUB_COUNT * 2;
+    static final private int MAX_BIT = 40;
+    static final int BUCKETS = LINEAR + (MAX_BIT - SUB_BITS - 1) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong max = new AtomicLong();
+    private final AtomicLong negative = new AtomicLong();
+
+    void record(long nanos) {
+        if (nanos < 0) {
+            // clocks between hosts are not perfectly in step.
+            negative.incrementAndGet();
+            nanos = 0;
+        }
+        counts.incrementAndGet(index(nanos));
+        long m = max.get();
+        while (nanos > m && !max.compareAndSet(m, nanos)) {
+            m = max.get();
+        }
+    }
+
+    static int index(long v) {
+        if (v < LINEAR) {
+            return (int)v;
+        }
+        int bit = 63 - Long.numberOfLeadingZeros(v);
+        if (bit >= MAX_BIT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int)(v >>> (bit - SUB_BITS)) & (SUB_COUNT - 1);
+        return LINEAR + (bit - SUB_BITS - 1) * SUB_COUNT + sub;
+    }
+
+    // the highest value that falls in the bucket.
+    static long valueAt(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int bit = (index - LINEAR) / SUB_COUNT + SUB_BITS + 1;
+        long sub = (index - LINEAR) % SUB_COUNT;
+        long width = 1L << (bit - SUB_BITS);
+        return (1L << bit) + sub * width + width - 1;
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    long negative() {
+        return negative.get();
+    }
+
+    /**
+     * Copies the current counts into into, which must hold BUCKETS longs.
+     */
+    void snapshot(long[] into) {
+        for (int i = 0; i < BUCKETS; i++) {
+            into[i] = counts.get(i);
+        }
+    }
+
+    /**
+     * Adds the current counts to into, e.g. to sum several histograms.
+     */
+    void addTo(long[] into) {
+        for (int i = 0; i < BUCKETS; i++) {
+            into[i] += counts.get(i);
+        }
+    }
+
+    long[] snapshot() {
+        long[] s = new long[BUCKETS];
+        snapshot(s);
+        return s;
+    }
+
+    /**
+     * Returns the counts recorded between two snapshots.
+     */
+    static long[] diff(long[] later, long[] earlier) {
+        long[] d = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            d[i] = later[i] - earlier[i];
+        }
+        return d;
+    }
+
+    static long total(long[] c) {
+        long n = 0;
+        for (long v : c) {
+            n += v;
+        }
+        return n;
+    }
+
+    static long percentile(long[] c, long total, double p) {
+        long rank = (long)Math.ceil(total * p / 100.0);
+        if (rank < 1) {
+            rank = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += c[i];
+            if (seen >= rank) {
+                return valueAt(i);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Formats count, p50, p99, p99.9 and max of a set of counts.  The max is
+     * the top of the highest bucket used.
+     */
+    static String summary(long[] c) {
+        long n = total(c);
+        if (n == 0) {
+            return "n=0";
+        }
+        int top = BUCKETS - 1;
+        while (top > 0 && c[top] == 0) {
+            top--;
+        }
+        return String.format("n=%d p50=%.3fms p99=%.3fms p99.9=%.3fms max=%.3fms", n,
+            ms(percentile(c, n, 50)), ms(percentile(c, n, 99)), ms(percentile(c, n, 99.9)), ms(valueAt(top)));
+    }
+
+    static double ms(long nanos) {
+        return nanos / 1000000.0;
+    }
+}
@@ -0,0 +1,174 @@
+// Copyright 2020 Colin Sullivan
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.java.examples;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Records one-way latency into LatencyHistograms and reports it overall,
+ * per interval, and for a window around each migration.
+ *
+ * Each dispatcher or worker records into a histogram of its own, a stripe,
+ * so threads receiving at once don't contend for the same buckets.  The
+ * stripes are summed when they're snapshotted.
+ *
+ * tick() is called once a second and keeps a ring of snapshots of the
+ * histograms.  Interval reports diff consecutive snapshots, and a window is
+ * the diff between the last snapshot taken a second before a migration
+ * started and the first taken a couple of seconds after it ended.
+ */
+class LatencyTracker {
+
+    static final private int NANOSPERSEC = 1000000000;
+
+    // seconds of snapshots kept, and the span of a migration window.
+    static final private int RING = 16;
+    static final private long WINDOW_BEFORE = NANOSPERSEC;
+    static final private long WINDOW_AFTER = 2L * NANOSPERSEC;
+
+    // latency recorded around one migration.
+    static class Window {
+        final String label;
+        final long start;
+        volatile long end;
+        long[] counts;
+
+        Window(String label, long start) {
+            this.label = label;
+            this.start = start;
+        }
+    }
+
+    private final List<LatencyHistogram> stripes = new CopyOnWriteArrayList<>();
+    private final long[][] ring = new long[RING][LatencyHistogram.BUCKETS];
+    private final long[] ringTime = new long[RING];
+    private int ticks;
+
+    private final int intervalSecs;
+    private final long[] lastInterval = new long[LatencyHistogram.BUCKETS];
+    private final List<Window> windows = new ArrayList<>();
+
+    LatencyTracker(int intervalSecs) {
+        this.intervalSecs = intervalSecs;
+    }
+
+    // A histogram for a new dispatcher or worker to record into.  Stripes
+    // are kept for good, so what earlier connections recorded still counts.
+    LatencyHistogram newStripe() {
+        LatencyHistogram h = new LatencyHistogram();
+        stripes.add(h);
+        return h;
+    }
+
+    // the sum of the stripes' counts.
+    private void snapshot(long[] into) {
+        Arrays.fill(into, 0);
+        for (LatencyHistogram h : stripes) {
+            h.addTo(into);
+        }
+    }
+
+    private long max() {
+        long m = 0;
+        for (LatencyHistogram h : stripes) {
+            m = Math.max(m, h.max());
+        }
+        return m;
+    }
+
+    private long negative() {
+        long n = 0;
+        for (LatencyHistogram h : stripes) {
+            n += h.negative();
+        }
+        return n;
+    }
+
+    synchronized Window openWindow(String label, long start) {
+        Window w = new Window(label, start);
+        windows.add(w);
+        return w;
+    }
+
+    void closeWindow(Window w, long end) {
+        w.end = end;
+    }
+
+    synchronized void tick(long now, long startTime) {
+        int slot = ticks % RING;
+        snapshot(ring[slot]);
+        ringTime[slot] = now;
+        ticks++;
+
+        if (intervalSecs > 0 && ticks % intervalSecs == 0) {
+            System.out.printf("Latency at %.0fs: %s\n", (double)(now - startTime) / NANOSPERSEC,
+                LatencyHistogram.summary(LatencyHistogram.diff(ring[slot], lastInterval)));
+            System.arraycopy(ring[slot], 0, lastInterval, 0, lastInterval.length);
+        }
+
+        for (Window w : windows) {
+            if (w.counts == null && w.end != 0 && now - w.end >= WINDOW_AFTER) {
+                w.counts = LatencyHistogram.diff(ring[slot], before(w.start - WINDOW_BEFORE));
+            }
+        }
+    }
+
+    // the newest snapshot taken at or before t, or the oldest we have.
+    private long[] before(long t) {
+        int n = Math.min(ticks, RING);
+        long[] best = null;
+        long bestTime = 0;
+        long[] oldest = null;
+        long oldestTime = Long.MAX_VALUE;
+        for (int i = 0; i < n; i++) {
+            if (ringTime[i] <= t && (best == null || ringTime[i] > bestTime)) {
+                best = ring[i];
+                bestTime = ringTime[i];
+            }
+            if (ringTime[i] < oldestTime) {
+                oldest = ring[i];
+                oldestTime = ringTime[i];
+            }
+        }
+        if (best != null) {
+            return best;
+        }
+        return oldest != null ? oldest : new long[LatencyHistogram.BUCKETS];
+    }
+
+    synchronized void report(long startTime) {
+        long[] now = new long[LatencyHistogram.BUCKETS];
+        snapshot(now);
+        System.out.printf("Latency overall: %s\n", LatencyHistogram.summary(now));
+        System.out.printf("Latency max: %.3fms exactly", LatencyHistogram.ms(max()));
+        long negative = negative();
+        if (negative > 0) {
+            System.out.printf(", %d negative latencies (clock skew) counted as zero", negative);
+        }
+        System.out.println();
+
+        for (Window w : windows) {
+            long[] c = w.counts;
+            if (c == null) {
+                // the window was still open when the run ended.
+                c = LatencyHistogram.diff(now, before(w.start - WINDOW_BEFORE));
+            }
+            System.out.printf("Latency around %s at %.3fs: %s\n", w.label,
+                (double)(w.start - startTime) / NANOSPERSEC, LatencyHistogram.summary(c));
+        }
+    }
+}
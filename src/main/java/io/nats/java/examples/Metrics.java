@@ -0,0 +1,337 @@
+// Copyright 2020 Colin Sullivan
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package io.nats.java.examples;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A small registry of counters, gauges and timers, exposed over JMX and as
+ * Prometheus text on http://host:port/metrics.
+ *
+ * Instruments are created once at startup.  Updating them is lock-free and
+ * never allocates: counters and timers are striped LongAdders, so threads
+ * publishing or receiving in parallel don't contend on one cache line, and
+ * gauges are read from a supplier only when scraped.
+ */
+public class Metrics implements DynamicMBean {
+
+    static final private double NANOSPERSEC = 1000000000.0;
+
+    public static class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long n) {
+            value.add(n);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    // Durations, reported as a count, a sum and the largest seen.
+    public static class Timer {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long nanos) {
+            count.increment();
+            total.add(nanos);
+            long m = max.get();
+            while (nanos > m && !max.compareAndSet(m, nanos)) {
+                m = max.get();
+            }
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long totalNanos() {
+            return total.sum();
+        }
+
+        public long maxNanos() {
+            return max.get();
+        }
+    }
+
+    // One series: a metric name, its labels and how to read it.
+    private static class Series {
+        final String name;
+        final String labels;
+        final String help;
+        final Object instrument;
+
+        Series(String name, String labels, String help, Object instrument) {
+            this.name = name;
+            this.labels = labels;
+            this.help = help;
+            this.instrument = instrument;
+        }
+
+        // the JMX attribute name, e.g. migration_phase_seconds_drain.
+        String key() {
+            if (labels.isEmpty()) {
+                return name;
+            }
+            StringBuilder sb = new StringBuilder(name);
+            for (String label : labels.split(",")) {
+                sb.append('_').append(label.substring(label.indexOf('=') + 1).replace("\"", ""));
+            }
+            return sb.toString();
+        }
+    }
+
+    private final String app;
+    private final List<Series> series = new CopyOnWriteArrayList<>();
+    private ObjectName objectName;
+    private HttpServer http;
+
+    /**
+     * Creates a registry for app, which labels every series and names the
+     * MBean.
+     */
+    public Metrics(String app) {
+        this.app = app;
+    }
+
+    public Counter counter(String name, String help) {
+        return counter(name, "", help);
+    }
+
+    // labels are in Prometheus form, e.g. outcome="completed".
+    public Counter counter(String name, String labels, String help) {
+        Counter c = new Counter();
+        series.add(new Series(name, labels, help, c));
+        return c;
+    }
+
+    // A counter kept elsewhere, e.g. in per-thread stripes, and read from
+    // value only when scraped.
+    public void counter(String name, String help, LongSupplier value) {
+        series.add(new Series(name, "", help, new Counter() {
+            @Override
+            public long get() {
+                return value.getAsLong();
+            }
+        }));
+    }
+
+    public Timer timer(String name, String labels, String help) {
+        Timer t = new Timer();
+        series.add(new Series(name, labels, help, t));
+        return t;
+    }
+
+    public void gauge(String name, String help, LongSupplier value) {
+        series.add(new Series(name, "", help, value));
+    }
+
+    /**
+     * Returns every series in the Prometheus text exposition format.
+     * Counters are suffixed _total, and timers are summaries in seconds with
+     * a separate _max gauge.  Series are grouped by name, in the order each
+     * name was first registered, so every metric has one HELP and TYPE
+     * however its series were interleaved.
+     */
+    public String scrape() {
+        Map<String, List<Series>> byName = new LinkedHashMap<>();
+        for (Series s : series) {
+            byName.computeIfAbsent(s.name, k -> new ArrayList<>()).add(s);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (List<Series> group : byName.values()) {
+            Series s = group.get(0);
+            if (s.instrument instanceof Counter) {
+                header(sb, s.name + "_total", s.help, "counter");
+            } else if (s.instrument instanceof Timer) {
+                header(sb, s.name, s.help, "summary");
+            } else {
+                header(sb, s.name, s.help, "gauge");
+            }
+            for (Series g : group) {
+                if (g.instrument instanceof Counter) {
+                    sample(sb, g.name + "_total", g.labels, Long.toString(((Counter)g.instrument).get()));
+                } else if (g.instrument instanceof Timer) {
+                    Timer t = (Timer)g.instrument;
+                    sample(sb, g.name + "_count", g.labels, Long.toString(t.count()));
+                    sample(sb, g.name + "_sum", g.labels, Double.toString(t.totalNanos() / NANOSPERSEC));
+                } else {
+                    sample(sb, g.name, g.labels, Long.toString(((LongSupplier)g.instrument).getAsLong()));
+                }
+            }
+        }
+        // summaries can't carry a max, so timers get a gauge of their own.
+        for (List<Series> group : byName.values()) {
+            Series s = group.get(0);
+            if (!(s.instrument instanceof Timer)) {
+                continue;
+            }
+            header(sb, s.name + "_max", "Largest " + s.help.toLowerCase(), "gauge");
+            for (Series g : group) {
+                sample(sb, g.name + "_max", g.labels, Double.toString(((Timer)g.instrument).maxNanos() / NANOSPERSEC));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void header(StringBuilder sb, String name, String help, String type) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private void sample(StringBuilder sb, String name, String labels, String value) {
+        sb.append(name).append("{app=\"").append(app).append('"');
+        if (!labels.isEmpty()) {
+            sb.append(',').append(labels);
+        }
+        sb.append("} ").append(value).append('\n');
+    }
+
+    // the current values of every series, keyed by JMX attribute name.
+    private Map<String, Object> values() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        for (Series s : series) {
+            String key = s.key();
+            if (s.instrument instanceof Counter) {
+                m.put(key, ((Counter)s.instrument).get());
+            } else if (s.instrument instanceof Timer) {
+                Timer t = (Timer)s.instrument;
+                m.put(key + "_count", t.count());
+                m.put(key + "_sum", t.totalNanos() / NANOSPERSEC);
+                m.put(key + "_max", t.maxNanos() / NANOSPERSEC);
+            } else {
+                m.put(key, ((LongSupplier)s.instrument).getAsLong());
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server as
+     * io.nats.java.examples:type=Metrics,app=<app>.
+     */
+    public void registerMBean() throws Exception {
+        objectName = new ObjectName("io.nats.java.examples:type=Metrics,app=" + app);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+    }
+
+    /**
+     * Serves the metrics on /metrics for Prometheus to scrape.
+     */
+    public void serve(int port) throws IOException {
+        http = HttpServer.create(new InetSocketAddress(port), 0);
+        http.createContext("/metrics", exchange -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        http.start();
+        System.out.printf("Serving metrics on http://localhost:%d/metrics\n", http.getAddress().getPort());
+    }
+
+    public void close() {
+        if (http != null) {
+            http.stop(0);
+            http = null;
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (Exception e) {
+                // NOOP
+            }
+            objectName = null;
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Object v = values().get(attribute);
+        if (v == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return v;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Object> m = values();
+        AttributeList list = new AttributeList();
+        for (String a : attributes) {
+            if (m.containsKey(a)) {
+                list.add(new Attribute(a, m.get(a)));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("metrics are read only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        Map<String, Object> m = values();
+        MBeanAttributeInfo[] attrs = new MBeanAttributeInfo[m.size()];
+        int i = 0;
+        for (Map.Entry<String, Object> e : m.entrySet()) {
+            attrs[i++] = new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(), e.getKey(), true, false, false);
+        }
+        return new MBeanInfo(getClass().getName(), "NATS migration metrics for " + app, attrs, null,
+            new MBeanOperationInfo[0], null);
+    }
+}
@@ -0,0 +1,101 @@
+// Copyright 2020 Colin Sullivan
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package io.nats.java.examples;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+import io.nats.client.Connection;
+
+/**
+ * The instruments the publisher, subscriber and control plane share:
+ * migrations and their phases, drain outcomes, and connection events.
+ * Each application adds its own message rate and byte counters to the
+ * same registry.
+ */
+public class MigrationMetrics {
+
+    final Metrics registry;
+
+    final Metrics.Counter migrationsOk;
+    final Metrics.Counter migrationsFailed;
+    final Metrics.Counter migrationsCancelled;
+    final Metrics.Timer migration;
+    final Metrics.Counter standbysTaken;
+
+    // the phases of a migration.  The publisher has no subscribe or
+    // propagation phase.
+    final Metrics.Timer connect;
+    final Metrics.Timer subscribe;
+    final Metrics.Timer propagation;
+    final Metrics.Timer drain;
+
+    final Metrics.Counter drainsCompleted;
+    final Metrics.Counter drainsTimedOut;
+    final Metrics.Counter drainsFailed;
+
+    final Metrics.Counter reconnects;
+    final Metrics.Counter slowConsumers;
+
+    public MigrationMetrics(Metrics registry) {
+        this.registry = registry;
+        migrationsOk = registry.counter("nats_migrate_migrations", "outcome=\"ok\"", "Migrations requested through the control plane.");
+        migrationsFailed = registry.counter("nats_migrate_migrations", "outcome=\"error\"", "Migrations requested through the control plane.");
+        migrationsCancelled = registry.counter("nats_migrate_migrations", "outcome=\"cancelled\"", "Migrations requested through the control plane.");
+        migration = registry.timer("nats_migrate_migration_seconds", "", "Time from a migration request to its reply.");
+        standbysTaken = registry.counter("nats_migrate_standby_connections_taken", "Standby connections used by migrations.");
+        connect = phase("connect");
+        subscribe = phase("subscribe");
+        propagation = phase("propagation");
+        drain = phase("drain");
+        drainsCompleted = drainOutcome("completed");
+        drainsTimedOut = drainOutcome("timeout");
+        drainsFailed = drainOutcome("failed");
+        reconnects = registry.counter("nats_migrate_reconnects", "Reconnects of the application's connections.");
+        slowConsumers = registry.counter("nats_migrate_slow_consumers", "Slow consumer events.");
+    }
+
+    private Metrics.Timer phase(String name) {
+        return registry.timer("nats_migrate_migration_phase_seconds", "phase=\"" + name + "\"", "Time spent in each phase of a migration.");
+    }
+
+    private Metrics.Counter drainOutcome(String outcome) {
+        return registry.counter("nats_migrate_drains", "outcome=\"" + outcome + "\"", "Drains of old connections by outcome.");
+    }
+
+    /**
+     * Drains c and records the drain's duration and outcome when it
+     * finishes, without waiting for it.
+     */
+    CompletableFuture<Boolean> drain(Connection c, Duration timeout) throws Exception {
+        long start = System.nanoTime();
+        CompletableFuture<Boolean> f;
+        try {
+            f = c.drain(timeout);
+        } catch (Exception e) {
+            drainsFailed.increment();
+            throw e;
+        }
+        f.whenComplete((ok, e) -> {
+            drain.record(System.nanoTime() - start);
+            if (e != null) {
+                drainsFailed.increment();
+            } else if (ok) {
+                drainsCompleted.increment();
+            } else {
+                drainsTimedOut.increment();
+            }
+        });
+        return f;
+    }
+}
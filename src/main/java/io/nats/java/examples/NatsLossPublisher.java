@@ -13,8 +13,27 @@
 
 package io.nats.java.examples;
 
-import java.nio.charset.StandardCharsets;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 import io.nats.client.Connection;
 import io.nats.client.ConnectionListener;
@@ -30,56 +49,354 @@ public class NatsLossPublisher implements ErrorListener, ConnectionListener {
     private String server;
     private int count;
     private int rate;
-    private long delay;
-    private long startTime;
-    private Connection conn;
-    private Object connLock = new Object();
+    private String pacerMode = "constant";
+    private int batch = 0;
+    private int workers = 1;
+    private int connections = 1;
+    private boolean striped = false;
+    private List<String> standbyUrls;
+
+    // With fanout, message seq goes to <subject>.<seq % fanout>.
+    private String[] fanoutSubjects;
+
+    // how payloads are sized and filled; see PayloadGenerator.
+    private String payloadSizes = "fixed";
+    private String payloadContent = "zeros";
+    private int payloadRing = PayloadGenerator.DEFAULT_RING;
+    private volatile PayloadGenerator payloads;
+
+    // replay of a recorded traffic log instead of synthetic messages.
+    private Path replayDir;
+    private double replaySpeed = 1.0;
+    private boolean recordedSubjects = false;
+
+    // The current connections.  Publishers read them without locking, and a
+    // migration atomically swaps in the new connections, so publishing never
+    // blocks on a migration.
+    private AtomicReferenceArray<Connection> conns;
+
+    // Stamped into every payload.  Each worker's publisher id is this
+    // process' random id in the high bits and the worker in the low bits.
+    private final long publisherId = newPublisherId();
+    private final AtomicInteger epoch = new AtomicInteger();
+
+    // Publishes in progress for each connection index.  A publisher counts
+    // itself in before loading the connection, and a migration swaps in a
+    // fresh counter after the new connection, so once the old counter is
+    // back to zero nothing can still be publishing on the old connection.
+    private AtomicReferenceArray<LongAdder> inFlight;
+
+    private final Metrics registry = new Metrics("publisher");
+    private final MigrationMetrics metrics = new MigrationMetrics(registry);
+    private final Metrics.Counter published = registry.counter("nats_migrate_published_messages", "Messages published.");
+    private final Metrics.Counter publishedBytes = registry.counter("nats_migrate_published_bytes", "Payload bytes published.");
+    private final Metrics.Counter sent = registry.counter("nats_migrate_sent_messages",
+        "NATS messages handed to the client, each holding one or more published messages.");
+    private final Metrics.Counter sentBytes = registry.counter("nats_migrate_sent_bytes", "NATS message payload bytes handed to the client.");
+    private int metricsPort = -1;
+    private String instanceId = ControlPlane.defaultInstanceId();
+    private TargetSelector.ScoringPolicy scoring = TargetSelector.BALANCED;
+    private String monitor = Integer.toString(ServerMonitor.DEFAULT_PORT_OFFSET);
+
+    // Connections being drained, and the messages written by those that
+    // have finished, for estimating what is still queued in the client.
+    private final Set<Connection> draining = ConcurrentHashMap.newKeySet();
+    private final AtomicLong retiredOutMsgs = new AtomicLong();
+    private final AtomicLong retiredOutBytes = new AtomicLong();
+
+    // In request mode, each message is a request with up to this many in
+    // flight, and the subscribers reply.
+    private int requestsInFlight = 0;
+    private long requestTimeoutMillis = 1000;
+    private int requestRetries = 2;
+    private RequestTracker requests;
+
+    private volatile double publishRate;
+
+    // Pauses publishing when the client buffers too much, in adaptive flow
+    // mode.  Otherwise, by default, a fixed reconnect buffer absorbs outages
+    // and the client refuses messages beyond it.
+    private boolean adaptiveFlow = false;
+    private volatile FlowControl flow;
+    private final Metrics.Timer throttled = registry.timer("nats_migrate_throttle_seconds", "",
+        "Time publishers were paused because the client was buffering too much.");
+
+    // With packing, each worker packs its messages into batches of up to
+    // packLimit bytes per subject, sent when full or after lingering.
+    private int packLimit = 0;
+    private long lingerMillis = 5;
+    private final List<Batch.Writer> writers = new CopyOnWriteArrayList<>();
+
+    // With a spool, what the client can't take while disconnected or
+    // saturated goes to disk, and is replayed at catchupRate messages per
+    // second once the connections recover.
+    private Path spoolDir;
+    private double catchupRate;
+    private volatile Spool spool;
+    private final Metrics.Counter spooled = registry.counter("nats_migrate_spooled_messages",
+        "NATS messages set aside in the spool because the client couldn't take them.");
+    private final Metrics.Counter spoolReplayed = registry.counter("nats_migrate_spool_replayed_messages",
+        "NATS messages replayed from the spool.");
+    private final Metrics.Timer spoolRecovery = registry.timer("nats_migrate_spool_recovery_seconds", "",
+        "Time from spooling the first message of an outage to replaying the last.");
+    private double maxReplayRate;
 
     static final private int NANOSPERSEC = 1000000000;
-    static final private int NANOSPERMS = NANOSPERSEC / 1000;
 
-    static final String usageString = "\nUsage: java NatsLossPublisher <server> <count> <rate (msgs/sec)> <subject> <msgsize>\n"
+    // seconds of publishing the fixed reconnect buffer holds, and its cap.
+    static final private int BUFFER_SECONDS = 15;
+    static final private long MAX_RECONNECT_BUFFER = Integer.MAX_VALUE;
+
+    static final String usageString = "\nUsage: java NatsLossPublisher <server> <count> <rate (msgs/sec)> <subject> <msgsize> [options]\n"
+            + "\nOptions:\n"
+            + "  -pacer <constant|burst|poisson>  arrival pattern of messages, default constant\n"
+            + "  -batch <n>                       messages sent per pacing interval (burst size in burst mode)\n"
+            + "  -workers <n>                     number of publishing threads, default 1\n"
+            + "  -connections <n>                 number of connections shared by the workers, default 1\n"
+            + "  -subjects <shared|striped>       publish all workers on <subject>, or worker i on <subject>.i\n"
+            + "  -sizes <spec>                    payload sizes: fixed, uniform:<min>-<max>, lognormal:<sigma>\n"
+            + "                                   (median <msgsize>) or histogram:<file> of \"size weight\" lines\n"
+            + "  -content <type>                  payload content: zeros, random, text or json, default zeros\n"
+            + "  -ring <n>                        number of payloads generated ahead of the run, default 4096\n"
+            + "  -fanout <n>                      spread messages over <subject>.0 to <subject>.<n-1>\n"
+            + "  -replay <dir>                    replay a log recorded by the subscriber's -record, one worker\n"
+            + "  -speed <factor>                  replay speed relative to the recording, default 1\n"
+            + "  -subjects recorded               replay on the recorded subjects rather than <subject>\n"
+            + "  -requests <n>                    send requests with up to n in flight rather than publishing\n"
+            + "  -timeout <ms>                    time to wait for a reply before retrying, default 1000\n"
+            + "  -retries <n>                     times a request is retried before it fails, default 2\n"
+            + "  -pack <bytes>                    pack messages into batches of up to this many bytes\n"
+            + "  -linger <ms>                     longest a packed message waits for its batch to fill, default 5\n"
+            + "  -spool <dir>                     spool to disk what the client can't take, and replay it\n"
+            + "  -catchup <msgs/sec>              rate the spool is replayed at, default twice <rate>\n"
+            + "  -flow <buffer|adaptive>          use a fixed 15s reconnect buffer (default), or pause publishing\n"
+            + "                                   when the client buffers more than it writes in 2s\n"
+            + "  -standby <url,url,...>           keep connections to these servers ready for migrations\n"
+            + "  -metrics <port>                  serve Prometheus metrics on http://localhost:<port>/metrics\n"
+            + "  -instance <id>                   this instance's id in control subjects, default <host>-<pid>\n"
+            + "  -scoring <policy>                score candidate servers by balanced (default), latency or load\n"
+            + "  -monitor <spec>                  candidates' monitoring endpoints: a port offset (default 4000),\n"
+            + "                                   a url with {host}, e.g. http://{host}:8222, or none\n"
             + "\nUse tls:// or opentls:// to require tls, via the Default SSLContext\n"
             + "\nSet the environment variable NATS_NKEY to use challenge response authentication by setting a file containing your private key.\n"
             + "\nSet the environment variable NATS_CREDS to use JWT/NKey authentication by setting a file containing your user creds.\n"
             + "\nUse the URL for user/pass/token authentication.\n";
 
-    public void simulateWorkDelay(int currentCount) throws InterruptedException {
+    public NatsLossPublisher(String server, int count, int rate, String subject, int size) {
+        this.server = server;
+        this.count = count;
+        this.rate = rate;
+        this.subject = subject;
+        this.messageSize = size;
+        registry.gauge("nats_migrate_outgoing_pending_bytes",
+            "Estimated payload bytes published but not yet written to a server.", this::pendingBytes);
+        registry.gauge("nats_migrate_spool_depth_messages", "NATS messages waiting in the spool.",
+            () -> spool == null ? 0 : spool.depthMessages());
+        registry.gauge("nats_migrate_spool_depth_bytes", "Bytes waiting in the spool.",
+            () -> spool == null ? 0 : spool.depthBytes());
+        registry.gauge("nats_migrate_flow_limit_bytes", "Outgoing bytes buffered before publishers are paused.",
+            () -> flow == null ? 0 : flow.limit());
+    }
+
+    public void setPacing(String mode, int batch) {
+        this.pacerMode = mode;
+        this.batch = batch;
+    }
+
+    // Runs workers publishing threads spread across connections.  Striped
+    // workers publish on <subject>.<worker>, so subscribers should listen
+    // on <subject>.*.
+    public void setConcurrency(int workers, int connections, boolean striped) {
+        this.workers = workers;
+        this.connections = connections;
+        this.striped = striped;
+    }
+
+    // Spreads each worker's messages over <subject>.0 through
+    // <subject>.<n-1> in turn.  The subject strings are built once here.
+    public void setFanout(int n) {
+        fanoutSubjects = new String[n];
+        for (int k = 0; k < n; k++) {
+            fanoutSubjects[k] = subject + "." + k;
+        }
+    }
+
+    // Draws payload sizes from the sizes distribution and fills them with
+    // content, from a ring of ring pre-generated payloads.
+    public void setPayloads(String sizes, String content, int ring) {
+        this.payloadSizes = sizes;
+        this.payloadContent = content;
+        this.payloadRing = ring;
+    }
+
+    // Replays the traffic recorded in dir, with the recorded gaps divided
+    // by speed, instead of publishing fixed size messages at the rate.  The
+    // count limits how many are replayed, and 0 replays them all.
+    public void setReplay(Path dir, double speed, boolean recordedSubjects) {
+        this.replayDir = dir;
+        this.replaySpeed = speed;
+        this.recordedSubjects = recordedSubjects;
+    }
+
+    // Sends each message as a request, with up to inflight outstanding,
+    // retrying those not answered within timeoutMillis up to retries times.
+    public void setRequests(int inflight, long timeoutMillis, int retries) {
+        this.requestsInFlight = inflight;
+        this.requestTimeoutMillis = timeoutMillis;
+        this.requestRetries = retries;
+    }
+
+    // Packs messages into NATS messages of up to limit bytes, each sent
+    // once full or when its first message has waited lingerMillis.
+    public void setPacking(int limit, long lingerMillis) {
+        this.packLimit = limit;
+        this.lingerMillis = lingerMillis;
+    }
+
+    // Pauses publishing when the client is buffering more than the
+    // connections drain in a couple of seconds, rather than relying on a
+    // fixed reconnect buffer.
+    public void setAdaptiveFlow(boolean adaptive) {
+        this.adaptiveFlow = adaptive;
+    }
+
+    // Spools what the client can't take to segment files in dir, replayed
+    // at catchupRate messages per second, or twice the rate if 0.
+    public void setSpool(Path dir, double catchupRate) {
+        this.spoolDir = dir;
+        this.catchupRate = catchupRate;
+    }
+
+    // Keeps connections to these servers warm for migrations.
+    public void setStandbyServers(List<String> urls) {
+        this.standbyUrls = urls;
+    }
+
+    // Names this instance in its control subject,
+    // control.migrate.publisher.<instanceId>.
+    public void setInstanceId(String id) {
+        this.instanceId = id;
+    }
+
+    // Scores the candidates of migration requests that list several with
+    // policy, reading their client counts from the monitoring endpoints
+    // that monitor maps them to (see ServerMonitor.mapping).
+    public void setTargetSelection(TargetSelector.ScoringPolicy policy, String monitor) {
+        this.scoring = policy;
+        this.monitor = monitor;
+    }
+
+    // Serves metrics over HTTP on port; they are always available over JMX.
+    public void setMetricsPort(int port) {
+        this.metricsPort = port;
+    }
+
+    // The rate the last run published at, for the migration harness.
+    double publishRate() {
+        return publishRate;
+    }
 
-        long elapsed = System.nanoTime() - startTime;
-        double r = (double) currentCount / ((double) elapsed / (double) NANOSPERSEC);
-        long adj = delay / 20; // 5%
-        if (adj == 0) {
-            adj = 1; // 1ns min
+    // A random id in the high bits, that can't be taken for a batch.
+    private static long newPublisherId() {
+        long id;
+        do {
+            id = ThreadLocalRandom.current().nextLong() << 16;
+        } while (Batch.isReserved(id));
+        return id;
+    }
+
+    // The client doesn't expose its outgoing queue, so we compare the
+    // messages we have handed it with those the connections have written.
+    private long pendingBytes() {
+        AtomicReferenceArray<Connection> cs = conns;
+        if (cs == null) {
+            return 0;
         }
-        if (r < rate) {
-            delay -= adj;
-        } else if (r > rate) {
-            delay += adj;
+        long written = retiredOutMsgs.get();
+        for (int i = 0; i < cs.length(); i++) {
+            written += cs.get(i).getStatistics().getOutMsgs();
         }
-        if (delay < 0) {
-            delay = 0;
+        for (Connection c : draining) {
+            written += c.getStatistics().getOutMsgs();
         }
+        long n = sent.get();
+        return n == 0 ? 0 : (long)(Math.max(0, n - written) * ((double)sentBytes.get() / n));
+    }
 
-        int nanos;
-        long millis = 0;
+    private long writtenBytes() {
+        AtomicReferenceArray<Connection> cs = conns;
+        if (cs == null) {
+            return 0;
+        }
+        long written = retiredOutBytes.get();
+        for (int i = 0; i < cs.length(); i++) {
+            written += cs.get(i).getStatistics().getOutBytes();
+        }
+        for (Connection c : draining) {
+            written += c.getStatistics().getOutBytes();
+        }
+        return written;
+    }
 
-        if (delay < NANOSPERMS) {
-            nanos = (int) delay;
-        } else {
-            millis = delay / (NANOSPERMS);
-            nanos = (int) (delay - (NANOSPERMS * millis));
+    private double averageSize() {
+        PayloadGenerator p = payloads;
+        return p == null ? messageSize : p.averageSize();
+    }
+
+    // A task run against each connection by inParallel.
+    private interface ConnectionTask {
+        void run(int index) throws Exception;
+    }
+
+    // Runs the task for each connection index on its own thread, waits for
+    // all of them, and rethrows the first failure.
+    private static void inParallel(int n, ConnectionTask task) throws Exception {
+        if (n == 1) {
+            task.run(0);
+            return;
+        }
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        Thread[] threads = new Thread[n];
+        for (int i = 0; i < n; i++) {
+            final int index = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    task.run(index);
+                } catch (Exception e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            threads[i].start();
+        }
+        try {
+            for (Thread t : threads) {
+                t.join();
+            }
+        } catch (InterruptedException e) {
+            // interrupt the tasks too, e.g. connects for a cancelled
+            // migration, and wait for them so that nothing they made is
+            // left behind.
+            for (Thread t : threads) {
+                t.interrupt();
+            }
+            for (Thread t : threads) {
+                joinUninterruptibly(t);
+            }
+            throw e;
+        }
+        if (failure.get() != null) {
+            throw failure.get();
         }
-        Thread.sleep(millis, nanos);
     }
 
-    public NatsLossPublisher(String server, int count, int rate, String subject, int size) {
-        this.server = server;
-        this.count = count;
-        this.rate = rate;
-        this.subject = subject;
-        this.messageSize = size;
-        delay = NANOSPERSEC / count;
+    private static void joinUninterruptibly(Thread t) {
+        while (t.isAlive()) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                // keep waiting.
+            }
+        }
     }
 
     @Override
@@ -94,6 +411,7 @@ public class NatsLossPublisher implements ErrorListener, ConnectionListener {
 
     @Override
     public void slowConsumerDetected(Connection conn, Consumer consumer) {
+        metrics.slowConsumers.increment();
         System.out.println("NATS Loss Publisher Slow consumer");
     }
 
@@ -102,35 +420,102 @@ public class NatsLossPublisher implements ErrorListener, ConnectionListener {
         if (type == Events.CONNECTED || type == Events.DISCOVERED_SERVERS || type == Events.RESUBSCRIBED)
            return;
 
+        if (type == Events.RECONNECTED) {
+            metrics.reconnects.increment();
+        }
+
         System.out.println("NATS Loss Publisher Connection Event: " + type);
     }
 
     ControlPlane.MigrationHandler lmh = new ControlPlane.MigrationHandler() {
 
         @Override
-        public Connection migrate(String url) throws Exception {
-            Connection oldConn;
+        public CompletableFuture<Connection> migrate(ControlPlane.Migration m) {
+            return m.submit(() -> migrate(m.url(), m.ready(), m));
+        }
+
+        private Connection migrate(String url, List<Connection> ready, ControlPlane.Migration m) throws Exception {
+            int n = conns.length();
+            Connection[] newConns = new Connection[n];
+            Connection[] oldConns = new Connection[n];
+
+            // Use the standby connections we were handed, and create any
+            // others to the new server, all in parallel.
+            long start = System.nanoTime();
+            m.progress("connecting");
+            for (int i = 0; i < ready.size(); i++) {
+                if (i < n) {
+                    newConns[i] = ready.get(i);
+                } else {
+                    ready.get(i).close();
+                }
+            }
+            try {
+                inParallel(n, i -> {
+                    if (newConns[i] == null) {
+                        newConns[i] = Nats.connect(getOptions(url));
+                    }
+                });
+                // last chance to back out before the swap.
+                m.commit();
+            } catch (Exception e) {
+                // a cancel may have interrupted us; close what we made
+                // regardless.
+                Thread.interrupted();
+                for (Connection c : newConns) {
+                    if (c != null) {
+                        c.close();
+                    }
+                }
+                throw e;
+            }
+            metrics.connect.record(System.nanoTime() - start);
+            m.progress("connected");
 
-            // Create a connection the the new server
-            Connection newConn = Nats.connect(getOptions(url));
+            // Send what the workers have packed so far on the old
+            // connections, so no batch is left behind by the swap.
+            flushBatches();
 
-            // reassign the conn for use later in the program and to resume
-            // publishing.  Ensure threadsafety.
-            synchronized (connLock) {
-                oldConn = conn;
-                conn = newConn;
+            // Swap in the new connections.  Publishes from here on go to the
+            // new server; any publish that already picked up an old
+            // connection completes on it.  The old connections count as
+            // draining from here, so what they wrote still counts against
+            // what was published.
+            LongAdder[] oldInFlight = new LongAdder[n];
+            for (int i = 0; i < n; i++) {
+                oldConns[i] = conns.get(i);
+                draining.add(oldConns[i]);
+                conns.set(i, newConns[i]);
+                oldInFlight[i] = inFlight.getAndSet(i, new LongAdder());
             }
-           
-            // drain the old connection
+            epoch.incrementAndGet();
+
+            // Wait for publishes that loaded an old connection to finish,
+            // then drain them.  Replies come back on the connection a request
+            // went out on, so wait for those first.
+            m.progress("draining");
             try {
-                oldConn.drain(Duration.ofSeconds(5));
+                awaitPublishes(oldInFlight, 5, TimeUnit.SECONDS);
+                inParallel(n, i -> {
+                    Connection old = oldConns[i];
+                    if (requests != null && !requests.awaitIdle(old, requestTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                        System.out.println("Requests still outstanding on the old connection, draining anyway.");
+                    }
+                    metrics.drain(old, Duration.ofSeconds(5)).whenComplete((ok, e) -> {
+                        retiredOutMsgs.addAndGet(old.getStatistics().getOutMsgs());
+                        retiredOutBytes.addAndGet(old.getStatistics().getOutBytes());
+                        draining.remove(old);
+                    });
+                });
             }
             catch (InterruptedException e) {
                 // NOOP
             }
 
             System.out.println("Done with migration.");
-            return newConn;
+
+            // the control plane follows the first connection.
+            return newConns[0];
        }
        
        @Override
@@ -147,58 +532,550 @@ public class NatsLossPublisher implements ErrorListener, ConnectionListener {
             connectionTimeout(Duration.ofSeconds(5)).
             pingInterval(Duration.ofSeconds(10)).
             reconnectWait(Duration.ofSeconds(5)).
-            reconnectBufferSize(messageSize * rate * 15). // tolerate 15s of publishing outage during reconnect.
+            reconnectBufferSize(reconnectBufferSize()).
             maxReconnects(1024).
             errorListener(this).
             connectionListener(this).
             build();
     }
 
-    private void publish(byte[] payload) {
-        synchronized (connLock) {
-            conn.publish(subject, payload);
+    // With flow control the reconnect buffer is what the connections have
+    // been observed to drain in a couple of seconds; otherwise it holds 15s
+    // of publishing, capped so large sizes and rates can't overflow it.
+    private long reconnectBufferSize() {
+        FlowControl f = flow;
+        if (f != null) {
+            return f.limit();
         }
+        return (long)Math.min(MAX_RECONNECT_BUFFER, averageSize() * rate * BUFFER_SECONDS);
     }
 
-    public void Run() {
+    // Creates the publishing connections to the configured server.
+    void connectAll() throws Exception {
+        conns = new AtomicReferenceArray<>(connections);
+        inFlight = new AtomicReferenceArray<>(connections);
+        for (int i = 0; i < connections; i++) {
+            inFlight.set(i, new LongAdder());
+            conns.set(i, Nats.connect(getOptions(server)));
+        }
+    }
+
+    void closeAll() throws InterruptedException {
+        for (int i = 0; i < connections; i++) {
+            conns.get(i).close();
+        }
+    }
+
+    // Waits for the publishes counted in each of counters to finish.  A
+    // publish that is still running at the timeout retries on the new
+    // connection if the old one is closed under it.
+    private static void awaitPublishes(LongAdder[] counters, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (LongAdder c : counters) {
+            while (c.sum() > 0 && System.nanoTime() < deadline) {
+                LockSupport.parkNanos(10000);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        }
+    }
+
+    void publish(int index, String subj, byte[] payload) {
+        published.increment();
+        publishedBytes.add(payload.length);
+        send(index, subj, payload);
+    }
+
+    // Hands one NATS message, a payload or a batch of them, to the client,
+    // or to the spool while it is in use or the client can't take it.
+    private void send(int index, String subj, byte[] payload) {
+        LongAdder f = inFlight.get(index);
+        f.increment();
         try {
-            conn = Nats.connect(getOptions(server));
-            new ControlPlane(conn, lmh, "publisher");
+            send(index, subj, payload, conns.get(index));
+        } finally {
+            f.decrement();
+        }
+    }
 
-            System.out.println();
-            System.out.printf("Sending %s messages of %d bytes on %s, server is %s\n", count, messageSize, subject, server);
-            System.out.println();
+    private void send(int index, String subj, byte[] payload, Connection c) {
+        Spool s = spool;
+        if (s != null && spool(s, index, subj, payload, !canTake(c))) {
+            return;
+        }
+        sent.increment();
+        sentBytes.add(payload.length);
+        try {
+            c.publish(subj, payload);
+        } catch (IllegalStateException e) {
+            // We lost a race with a migration and the old connection is
+            // already draining or closed; publish on the new connection.
+            Connection cur = conns.get(index);
+            if (cur == c && s != null) {
+                // the client refused it; the spool keeps it, and what
+                // follows, until the connection is back.
+                sent.add(-1);
+                sentBytes.add(-payload.length);
+                spool(s, index, subj, payload, true);
+                return;
+            }
+            if (cur == c && !awaitReconnect(c)) {
+                throw e;
+            }
+            cur.publish(subj, payload);
+        }
+    }
+
+    private boolean spool(Spool s, int index, String subj, byte[] payload, boolean needed) {
+        if (!needed && !s.isActive()) {
+            return false;
+        }
+        try {
+            if (s.offer(index, subj, payload, needed)) {
+                spooled.increment();
+                return true;
+            }
+            return false;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
-            // send the expected count to the subscriber
-            publish(Integer.toString(count).getBytes(StandardCharsets.UTF_8));
+    // False while c is disconnected, or buffering more than flow control
+    // allows.
+    private boolean canTake(Connection c) {
+        FlowControl f = flow;
+        return c.getStatus() == Connection.Status.CONNECTED && (f == null || !f.saturated(c));
+    }
 
-            byte[] payload = new byte[messageSize];
+    // True once every connection can take what was spooled.
+    private boolean spoolReady() {
+        FlowControl f = flow;
+        for (int i = 0; i < conns.length(); i++) {
+            Connection c = conns.get(i);
+            if (f != null ? !f.ready(c) : c.getStatus() != Connection.Status.CONNECTED) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-            startTime = System.nanoTime();
+    // Replays the spool in order, paced at the catch-up rate, whenever it
+    // holds something and the connections are ready, until interrupted.
+    private void runSpoolReplay() {
+        Spool s = spool;
+        try {
+            for (;;) {
+                if (!s.isActive() || !spoolReady()) {
+                    LockSupport.parkNanos(1000000);
+                    if (Thread.interrupted()) {
+                        return;
+                    }
+                    continue;
+                }
+                Pacer pacer = Pacer.create("constant", catchupRate, 0);
+                long start = System.nanoTime();
+                long replayed = 0;
+                Spool.Entry e;
+                do {
+                    // stop while a connection is down again or backed up.
+                    while (!spoolReady()) {
+                        LockSupport.parkNanos(1000000);
+                        if (Thread.interrupted()) {
+                            return;
+                        }
+                    }
+                    int n = pacer.acquire();
+                    e = null;
+                    for (int j = 0; j < n && (e = s.poll()) != null; j++) {
+                        replay(e);
+                        replayed++;
+                    }
+                } while (e != null);
 
-            for (int i = 0; i < count; i++) {
+                long nanos = System.nanoTime() - start;
+                double replayRate = nanos == 0 ? 0 : (double)replayed * NANOSPERSEC / nanos;
+                maxReplayRate = Math.max(maxReplayRate, replayRate);
+                Spool.Episode ep = s.lastEpisode();
+                System.out.printf("Spool: set aside %d messages, at most %d (%d bytes) at once, replayed at %.0f msgs/sec; recovered in %.3f s.\n",
+                    ep.messages, ep.maxMessages, ep.maxBytes, replayRate, (double)ep.nanos / NANOSPERSEC);
+            }
+        } catch (InterruptedException e) {
+            // NOOP
+        } catch (IOException e) {
+            System.out.println("Spool: Exception: " + e.getMessage());
+        }
+    }
+
+    // Publishes a spooled message on the current connection for its
+    // index, waiting out anything that makes the client refuse it.
+    private void replay(Spool.Entry e) throws InterruptedException {
+        sent.increment();
+        sentBytes.add(e.payload.length);
+        spoolReplayed.increment();
+        for (;;) {
+            LongAdder f = inFlight.get(e.index);
+            f.increment();
+            try {
+                conns.get(e.index).publish(e.subject, e.payload);
+                return;
+            } catch (IllegalStateException ex) {
+                // refused; wait and try the current connection again.
+            } finally {
+                f.decrement();
+            }
+            LockSupport.parkNanos(1000000);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    // Sends message seq as a request, and retries it on the current
+    // connection if it isn't answered.
+    private void request(int index, String subj, long pid, long seq) throws InterruptedException {
+        requests.request(() -> conns.get(index), c -> {
+            byte[] payload = payloads.next(pid, seq, epoch.get());
+            published.increment();
+            publishedBytes.add(payload.length);
+            sent.increment();
+            sentBytes.add(payload.length);
+            return c.request(subj, payload);
+        });
+    }
+
+    // Otherwise the reconnect buffer was full.  With flow control, wait for
+    // the reconnect rather than drop the message.
+    private boolean awaitReconnect(Connection c) {
+        FlowControl f = flow;
+        try {
+            return f != null && f.awaitReconnect(c);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // Adds message seq to a batch, which is sent on the worker's
+    // connection once full.
+    private void pack(Batch.Writer w, long pid, long seq) {
+        int len = w.add(payloads, pid, seq, epoch.get());
+        published.increment();
+        publishedBytes.add(len);
+    }
+
+    // A worker's batches, one for each subject it publishes on.
+    private Batch.Writer[] newWriters(int index, String[] subjs) {
+        Batch.Writer[] ws = new Batch.Writer[subjs.length];
+        for (int k = 0; k < subjs.length; k++) {
+            String s = subjs[k];
+            ws[k] = new Batch.Writer(packLimit, TimeUnit.MILLISECONDS.toNanos(lingerMillis), b -> send(index, s, b));
+            writers.add(ws[k]);
+        }
+        return ws;
+    }
+
+    private void flushBatches() {
+        for (Batch.Writer w : writers) {
+            try {
+                w.flush();
+            } catch (final Exception e) {
+                System.out.println("Publish: Exception: " + e.getMessage());
+            }
+        }
+    }
+
+    // Sends the batches whose first message has waited out the linger.
+    private void flushLingering() {
+        long now = System.nanoTime();
+        for (Batch.Writer w : writers) {
+            try {
+                w.flushIfLingering(now);
+            } catch (final Exception e) {
+                System.out.println("Publish: Exception: " + e.getMessage());
+            }
+        }
+    }
+
+    // Publishes msgs messages for one worker, on the worker's connection and
+    // subject.
+    private void runWorker(int id, int msgs, Pacer pacer) {
+        int index = id % connections;
+        String subj = striped ? subject + "." + id : subject;
+        long pid = publisherId | id;
+        Batch.Writer[] batches = packLimit > 0
+            ? newWriters(index, fanoutSubjects == null ? new String[] {subj} : fanoutSubjects) : null;
+
+        try {
+            int i = 0;
+            while (i < msgs) {
+                int n = Math.min(pacer.acquire(), msgs - i);
+                if (flow != null && spool == null) {
+                    flow.await(conns.get(index));
+                }
+                for (int j = 0; j < n; j++) {
+                    int k = fanoutSubjects == null ? 0 : (i + j) % fanoutSubjects.length;
+                    String s = fanoutSubjects == null ? subj : fanoutSubjects[k];
+                    if (requests != null) {
+                        request(index, s, pid, i + j);
+                        continue;
+                    }
+                    try {
+                        if (batches != null) {
+                            pack(batches[k], pid, i + j);
+                        } else {
+                            publish(index, s, payloads.next(pid, i + j, epoch.get()));
+                        }
+                    } catch (final Exception e) {
+                        System.out.println("Publish: Exception: " + e.getMessage());
+                        e.printStackTrace();
+                    }
+                }
+                i += n;
+            }
+        } catch (InterruptedException e) {
+            System.out.printf("Worker %d interrupted.\n", id);
+        }
+    }
+
+    // Replays msgs messages from the log at their recorded timing.  Payloads
+    // large enough for a header are restamped, so the subscriber tracks the
+    // replay's sequences rather than the recording's.
+    private void runReplay(TrafficLog.Reader log, int msgs, Pacer pacer) {
+        long seq = 0;
+        try {
+            for (int i = 0; i < msgs && log.next(); i++) {
+                pacer.acquire();
+                if (flow != null && spool == null) {
+                    flow.await(conns.get(0));
+                }
+                int len = log.payloadLength();
+                if (len == 0) {
+                    // an empty message would end the subscriber's run.
+                    continue;
+                }
+                // the client holds on to the payload until it is written, so
+                // we can't publish straight from the mapping.
+                byte[] payload = new byte[len];
+                log.payload(payload);
+                if (Payload.isStamped(payload)) {
+                    Payload.stamp(payload, publisherId, seq++, epoch.get(), Payload.wallNanos());
+                }
                 try {
-                    publish(payload);
-                    simulateWorkDelay(i+1);
+                    publish(0, recordedSubjects ? log.subject() : subject, payload);
                 } catch (final Exception e) {
                     System.out.println("Publish: Exception: " + e.getMessage());
                     e.printStackTrace();
                 }
             }
+        } catch (InterruptedException e) {
+            System.out.println("Replay interrupted.");
+        }
+    }
+
+    // Waits for the spool to be replayed, unless the connection has given
+    // up on the server.
+    private void awaitSpool() throws InterruptedException {
+        while (spool.isActive()) {
+            if (conns.get(0).getStatus() == Connection.Status.CLOSED) {
+                System.out.printf("Connection closed with %d messages in the spool.\n", spool.depthMessages());
+                return;
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private void startMetrics() {
+        try {
+            registry.registerMBean();
+            if (metricsPort >= 0) {
+                registry.serve(metricsPort);
+            }
+        } catch (Exception e) {
+            System.out.println("Unable to expose metrics: " + e.getMessage());
+        }
+    }
+
+    public void Run() {
+        try {
+            if (replayDir == null) {
+                payloads = new PayloadGenerator(payloadSizes, payloadContent, messageSize, payloadRing);
+            }
+            if (adaptiveFlow) {
+                flow = new FlowControl(averageSize() * rate, this::pendingBytes, this::writtenBytes, throttled);
+            }
+            if (requestsInFlight > 0) {
+                requests = new RequestTracker(requestsInFlight, requestTimeoutMillis, requestRetries);
+            }
+            ScheduledExecutorService linger = null;
+            if (packLimit > 0) {
+                linger = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "batch-linger");
+                    t.setDaemon(true);
+                    return t;
+                });
+                // check a few times per linger, so no batch waits much longer.
+                long period = Math.max(TimeUnit.MILLISECONDS.toMicros(lingerMillis) / 4, 100);
+                linger.scheduleAtFixedRate(this::flushLingering, period, period, TimeUnit.MICROSECONDS);
+            }
+            connectAll();
+            Thread spoolReplay = null;
+            if (spoolDir != null) {
+                spool = new Spool(spoolDir, Spool.DEFAULT_SEGMENT_SIZE, spoolRecovery);
+                if (catchupRate <= 0) {
+                    catchupRate = 2.0 * rate;
+                }
+                spoolReplay = new Thread(this::runSpoolReplay, "spool-replay");
+                spoolReplay.setDaemon(true);
+                spoolReplay.start();
+            }
+            StandbyPool standbys = null;
+            if (standbyUrls != null) {
+                standbys = new StandbyPool(standbyUrls, this::getOptions, connections);
+            }
+            ControlPlane cp = new ControlPlane(conns.get(0), lmh, "publisher", instanceId, standbys, metrics);
+            cp.setTargetSelector(new TargetSelector(scoring, TargetSelector.DEFAULT_TTL_MILLIS,
+                ServerMonitor.mapping(monitor), this::getOptions));
+            startMetrics();
+
+            // The start and EOS messages go on the first connection, on the
+            // first worker's or fanout subject, so a subscriber on
+            // <subject>.* sees them when striping.
+            String ctrlSubject = striped || fanoutSubjects != null ? subject + ".0" : subject;
+
+            TrafficLog.Reader log = null;
+            if (replayDir != null) {
+                log = new TrafficLog.Reader(replayDir);
+                if (count <= 0 || count > log.count()) {
+                    count = (int)Math.min(log.count(), Integer.MAX_VALUE);
+                }
+            }
+
+            System.out.println();
+            if (log != null) {
+                System.out.printf("Replaying %d of %d messages recorded over %.3fs in %s at %.2fx speed, server is %s\n",
+                    count, log.count(), (double)log.duration() / NANOSPERSEC, replayDir, replaySpeed, server);
+            } else if (fanoutSubjects != null) {
+                System.out.printf("Sending %s messages of %d bytes over %s.0 to %s.%d from %d workers over %d connections, server is %s\n",
+                    count, messageSize, subject, subject, fanoutSubjects.length - 1, workers, connections, server);
+            } else if (workers == 1 && connections == 1) {
+                System.out.printf("Sending %s messages of %d bytes on %s, server is %s\n", count, messageSize, subject, server);
+            } else {
+                System.out.printf("Sending %s messages of %d bytes on %s%s from %d workers over %d connections, server is %s\n",
+                    count, messageSize, subject, striped ? ".*" : "", workers, connections, server);
+            }
+            if (payloads != null) {
+                System.out.printf("Payloads: %s, from a ring of %d\n", payloads.describe(), payloads.ringSize());
+            }
+            if (spool != null) {
+                System.out.printf("Spooling to %s what the client can't take, replayed at %.0f msgs/sec\n", spoolDir, catchupRate);
+            }
+            if (packLimit > 0) {
+                System.out.printf("Packing messages into batches of up to %d bytes, lingering up to %d ms\n", packLimit, lingerMillis);
+            }
+            if (requests != null) {
+                System.out.printf("Sending requests with up to %d in flight, a %d ms timeout and %d retries\n",
+                    requestsInFlight, requestTimeoutMillis, requestRetries);
+            }
+            System.out.printf("Publisher id %016x\n", publisherId);
+            System.out.println();
+
+            // send the expected count to the subscriber, and make sure it is
+            // processed before any worker's messages.
+            publish(0, ctrlSubject, Payload.start(count));
+            conns.get(0).flush(Duration.ofSeconds(2));
+
+            Pacer[] pacers = new Pacer[workers];
+            Thread[] threads = new Thread[workers];
+            for (int w = 0; w < workers; w++) {
+                final int id = w;
+                final int msgs = count / workers + (w < count % workers ? 1 : 0);
+                if (log != null) {
+                    TrafficLog.Reader replay = log;
+                    pacers[w] = new Pacer.Replay(log, replaySpeed);
+                    threads[w] = new Thread(() -> runReplay(replay, msgs, pacers[id]), "publisher-" + w);
+                } else {
+                    pacers[w] = Pacer.create(pacerMode, (double)rate / workers, batch);
+                    threads[w] = new Thread(() -> runWorker(id, msgs, pacers[id]), "publisher-" + w);
+                }
+            }
+
+            long startTime = System.nanoTime();
+
+            for (Thread t : threads) {
+                t.start();
+            }
+            for (Thread t : threads) {
+                t.join();
+            }
+            if (linger != null) {
+                linger.shutdownNow();
+                flushBatches();
+            }
+
+            if (spool != null) {
+                awaitSpool();
+                spoolReplay.interrupt();
+                spoolReplay.join();
+                spool.close();
+            }
+
+            if (requests != null && !requests.awaitAll(requests.maxRequestNanos() + NANOSPERSEC, TimeUnit.NANOSECONDS)) {
+                System.out.println("Requests still in flight at the end of the run.");
+            }
 
             long endTime = System.nanoTime();
 
-            // publish null message as EOS (end of stream)
-            synchronized(connLock)
-            {
-                conn.publish(subject, null);
-                conn.flush(Duration.ofSeconds(2));
-                conn.close();
+            // Flush every connection so all workers' messages are processed
+            // by the server, then publish null message as EOS (end of stream)
+            for (int i = 1; i < connections; i++) {
+                conns.get(i).flush(Duration.ofSeconds(2));
+            }
+            Connection c = conns.get(0);
+            c.publish(ctrlSubject, null);
+            c.flush(Duration.ofSeconds(2));
+            cp.close();
+            closeAll();
+            if (standbys != null) {
+                standbys.close();
+            }
+            registry.close();
+            if (log != null) {
+                log.close();
             }
             System.out.println("Finished.");
 
             double seconds = (double)(endTime - startTime) / (double)NANOSPERSEC;
-            System.out.printf("Publish rate: %d msgs/sec.\n", (int)(count / seconds));
+            publishRate = count / seconds;
+            if (flow != null) {
+                System.out.printf("Publish rate: %d msgs/sec, throttled for %.3f s (%.1f%% of the run) in %d pauses.\n",
+                    (int)(count / seconds), (double)flow.throttledNanos() / NANOSPERSEC,
+                    100.0 * flow.throttledNanos() / (endTime - startTime), flow.pauses());
+                System.out.printf("Flow control: drained %.0f bytes/sec, buffer limit %d bytes.\n", flow.drainRate(), flow.limit());
+            } else {
+                System.out.printf("Publish rate: %d msgs/sec.\n", (int)(count / seconds));
+            }
+            if (spool != null) {
+                System.out.printf("Spool: %d messages spooled in %d outages, replayed at up to %.0f msgs/sec; longest recovery %.3f s.\n",
+                    spooled.get(), spoolRecovery.count(), maxReplayRate, (double)spoolRecovery.maxNanos() / NANOSPERSEC);
+            }
+            if (packLimit > 0) {
+                // less the start message.
+                long batches = sent.get() - 1;
+                System.out.printf("Packed %d messages into %d NATS messages, %.1f in each.\n",
+                    count, batches, batches == 0 ? 0.0 : (double)count / batches);
+            }
+            if (requests != null) {
+                requests.report();
+                requests.close();
+            }
+            for (int w = 0; w < workers; w++) {
+                if (workers > 1) {
+                    System.out.printf("Worker %d:\n", w);
+                }
+                pacers[w].report(count / workers + (w < count % workers ? 1 : 0), endTime - startTime);
+            }
 
         } catch (final Exception exp) {
             exp.printStackTrace();
@@ -211,14 +1088,45 @@ public class NatsLossPublisher implements ErrorListener, ConnectionListener {
         String server;
         int count;
         int rate;
+        String pacerMode = "constant";
+        int batch = 0;
+        int workers = 1;
+        int connections = 1;
+        boolean striped = false;
+        List<String> standbyUrls = null;
+        String payloadSizes = "fixed";
+        String payloadContent = "zeros";
+        int payloadRing = PayloadGenerator.DEFAULT_RING;
+        int fanout = 0;
+        boolean adaptiveFlow = false;
+        int requestsInFlight = 0;
+        long requestTimeoutMillis = 1000;
+        int requestRetries = 2;
+        int packLimit = 0;
+        long lingerMillis = 5;
+        Path spoolDir = null;
+        double catchupRate = 0;
+        Path replayDir = null;
+        double replaySpeed = 1.0;
+        boolean recordedSubjects = false;
+        int metricsPort = -1;
+        String instanceId = null;
+        String scoring = "balanced";
+        String monitor = Integer.toString(ServerMonitor.DEFAULT_PORT_OFFSET);
+
+        // positional arguments come first, followed by options.
+        int positional = 0;
+        while (positional < args.length && !args[positional].startsWith("-")) {
+            positional++;
+        }
 
-        if (args.length == 5) {
+        if (positional == 5) {
             server = args[0];
             count = Integer.parseInt(args[1]);
             rate = Integer.parseInt(args[2]);
             subject = args[3];
             messageSize = Integer.parseInt(args[4]);
-        } else if (args.length == 0) {
+        } else if (positional == 0) {
             server = "nats://localhost:4222";
             count = 100000;
             rate = 10000;
@@ -229,12 +1137,170 @@ public class NatsLossPublisher implements ErrorListener, ConnectionListener {
             return;
         }
 
-        if (messageSize < 1) {
-            System.err.println("Error:  message size must be greater than 0");
+        for (int i = positional; i < args.length; i += 2) {
+            if (i + 1 >= args.length) {
+                usage();
+            }
+            switch (args[i]) {
+                case "-pacer":
+                    pacerMode = args[i+1];
+                    break;
+                case "-batch":
+                    batch = Integer.parseInt(args[i+1]);
+                    break;
+                case "-workers":
+                    workers = Integer.parseInt(args[i+1]);
+                    break;
+                case "-connections":
+                    connections = Integer.parseInt(args[i+1]);
+                    break;
+                case "-subjects":
+                    if (!"shared".equals(args[i+1]) && !"striped".equals(args[i+1]) && !"recorded".equals(args[i+1])) {
+                        usage();
+                    }
+                    striped = "striped".equals(args[i+1]);
+                    recordedSubjects = "recorded".equals(args[i+1]);
+                    break;
+                case "-sizes":
+                    payloadSizes = args[i+1];
+                    break;
+                case "-content":
+                    payloadContent = args[i+1];
+                    break;
+                case "-ring":
+                    payloadRing = Integer.parseInt(args[i+1]);
+                    break;
+                case "-fanout":
+                    fanout = Integer.parseInt(args[i+1]);
+                    break;
+                case "-replay":
+                    replayDir = Paths.get(args[i+1]);
+                    break;
+                case "-speed":
+                    replaySpeed = Double.parseDouble(args[i+1]);
+                    break;
+                case "-requests":
+                    requestsInFlight = Integer.parseInt(args[i+1]);
+                    break;
+                case "-timeout":
+                    requestTimeoutMillis = Long.parseLong(args[i+1]);
+                    break;
+                case "-retries":
+                    requestRetries = Integer.parseInt(args[i+1]);
+                    break;
+                case "-pack":
+                    packLimit = Integer.parseInt(args[i+1]);
+                    break;
+                case "-linger":
+                    lingerMillis = Long.parseLong(args[i+1]);
+                    break;
+                case "-spool":
+                    spoolDir = Paths.get(args[i+1]);
+                    break;
+                case "-catchup":
+                    catchupRate = Double.parseDouble(args[i+1]);
+                    break;
+                case "-flow":
+                    if (!"adaptive".equals(args[i+1]) && !"buffer".equals(args[i+1])) {
+                        usage();
+                    }
+                    adaptiveFlow = "adaptive".equals(args[i+1]);
+                    break;
+                case "-standby":
+                    standbyUrls = Arrays.asList(args[i+1].split(","));
+                    break;
+                case "-instance":
+                    instanceId = args[i+1];
+                    break;
+                case "-scoring":
+                    scoring = args[i+1];
+                    break;
+                case "-monitor":
+                    monitor = args[i+1];
+                    break;
+                case "-metrics":
+                    metricsPort = Integer.parseInt(args[i+1]);
+                    break;
+                default:
+                    usage();
+            }
+        }
+
+        if (messageSize < Payload.HEADER_SIZE) {
+            System.out.printf("Message size %d is smaller than the %d byte header, sending %d byte messages.\n",
+                messageSize, Payload.HEADER_SIZE, Payload.HEADER_SIZE);
+            messageSize = Payload.HEADER_SIZE;
+        }
+
+        if (payloadRing < 1) {
+            System.err.println("Error:  the payload ring needs at least one payload");
+            System.exit(1);
+        }
+        try {
+            new PayloadGenerator(payloadSizes, payloadContent, messageSize, 1);
+        } catch (Exception e) {
+            System.err.println("Error:  " + e.getMessage());
+            System.exit(1);
+        }
+
+        if (replayDir != null && (workers > 1 || replaySpeed <= 0)) {
+            System.err.println("Error:  replay needs a single worker and a positive speed");
+            System.exit(1);
+        }
+        if (fanout < 0 || (fanout > 0 && (striped || replayDir != null))) {
+            System.err.println("Error:  -fanout can't be combined with striped subjects or -replay");
+            System.exit(1);
+        }
+        if (requestsInFlight < 0 || requestTimeoutMillis <= 0 || requestRetries < 0 || (requestsInFlight > 0 && replayDir != null)) {
+            System.err.println("Error:  requests need a positive timeout, and can't be combined with -replay");
+            System.exit(1);
+        }
+        if (packLimit < 0 || packLimit > Batch.MAX_SIZE || lingerMillis < 0
+                || (packLimit > 0 && (requestsInFlight > 0 || replayDir != null))) {
+            System.err.printf("Error:  -pack needs a size of at most %d bytes, and can't be combined with -requests or -replay\n", Batch.MAX_SIZE);
+            System.exit(1);
+        }
+        if (catchupRate < 0 || (spoolDir != null && requestsInFlight > 0)) {
+            System.err.println("Error:  -spool can't be combined with -requests, and -catchup must be positive");
+            System.exit(1);
+        }
+        if (recordedSubjects && replayDir == null) {
+            System.err.println("Error:  -subjects recorded needs -replay");
+            System.exit(1);
+        }
+
+        if (workers < 1 || connections < 1 || connections > workers) {
+            System.err.println("Error:  need at least one worker per connection");
             System.exit(1);
         }
 
-        new NatsLossPublisher(server, count, rate, subject, messageSize).Run();
+        NatsLossPublisher pub = new NatsLossPublisher(server, count, rate, subject, messageSize);
+        pub.setPacing(pacerMode, batch);
+        pub.setConcurrency(workers, connections, striped);
+        pub.setStandbyServers(standbyUrls);
+        pub.setAdaptiveFlow(adaptiveFlow);
+        pub.setRequests(requestsInFlight, requestTimeoutMillis, requestRetries);
+        pub.setPacking(packLimit, lingerMillis);
+        if (spoolDir != null) {
+            pub.setSpool(spoolDir, catchupRate);
+        }
+        if (fanout > 0) {
+            pub.setFanout(fanout);
+        }
+        pub.setPayloads(payloadSizes, payloadContent, payloadRing);
+        if (replayDir != null) {
+            pub.setReplay(replayDir, replaySpeed, recordedSubjects);
+        }
+        pub.setMetricsPort(metricsPort);
+        if (instanceId != null) {
+            pub.setInstanceId(instanceId);
+        }
+        try {
+            pub.setTargetSelection(TargetSelector.policy(scoring), monitor);
+        } catch (IllegalArgumentException e) {
+            usage();
+        }
+        pub.Run();
     }
 
     static void usage() {
@@ -13,12 +13,21 @@
 
 package io.nats.java.examples;
 
-import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import io.nats.client.Connection;
 import io.nats.client.ConnectionListener;
@@ -32,7 +41,23 @@ import io.nats.client.Options;
 
 public class NatsLossSubscriber implements ErrorListener, ConnectionListener {
 
-    static final String usageString = "\nUsage: java NatsLossSubscriber [server] <subject>\n"
+    static final String usageString = "\nUsage: java NatsLossSubscriber [server] <subject> [options]\n"
+            + "\nOptions:\n"
+            + "  -interval <seconds>      how often to report latency, 0 for only at the end, default 5\n"
+            + "  -standby <url,url,...>   keep connections to these servers ready for migrations\n"
+            + "  -metrics <port>          serve Prometheus metrics on http://localhost:<port>/metrics\n"
+            + "  -instance <id>           this instance's id in control subjects, default <host>-<pid>\n"
+            + "  -scoring <policy>        score candidate servers by balanced (default), latency or load\n"
+            + "  -monitor <spec>          candidates' monitoring endpoints: a port offset (default 4000),\n"
+            + "                           a url with {host}, e.g. http://{host}:8222, or none\n"
+            + "  -workers <n>             process messages on n workers, sharded by publisher, default 0: on the dispatcher\n"
+            + "  -threads <platform|virtual>  kind of worker threads, default platform\n"
+            + "  -queue <n>               messages queued per worker before the dispatcher blocks, default 1024\n"
+            + "  -fanout <n>              queue subscribe to <subject>.0 to <subject>.<n-1>, for a publisher's -fanout\n"
+            + "  -dispatchers <n>         spread the fanout subscriptions over n dispatchers, default 1\n"
+            + "  -stall <ms>              end the run after this long without messages, default 10000\n"
+            + "  -record <dir>            record received messages to a traffic log for the publisher's -replay\n"
+            + "  -segment <MB>            size of each traffic log segment, default 64\n"
             + "\nUse tls:// or opentls:// to require tls, via the Default SSLContext\n"
             + "\nSet the environment variable NATS_NKEY to use challenge response authentication by setting a file containing your private key.\n"
             + "\nSet the environment variable NATS_CREDS to use JWT/NKey authentication by setting a file containing your user creds.\n"
@@ -41,19 +66,163 @@ public class NatsLossSubscriber implements ErrorListener, ConnectionListener {
     static final private int NANOSPERSEC = 1000000000;
     static final private String qgroup = "loss-subs";
 
+    // how often to resend an interest probe, and how long to wait in all.
+    static final private long PROBE_RETRY_MILLIS = 10;
+    static final private long PROBE_TIMEOUT_MILLIS = 5000;
+
     private String server;
     private String subject;
     private Connection conn;
     private Object connLock = new Object();
     private int pubCount = 0;
-    AtomicInteger count = new AtomicInteger();
+    private volatile boolean started = false;
+
+    // sequence tracking for each publisher.  There are few publishers, so
+    // a scan finds one without boxing its id as a map key would.
+    private volatile SequenceTracker[] trackers = new SequenceTracker[0];
+
+    // A migration of this subscriber, for placing gaps in the report.
+    static class MigrationEvent {
+        final String url;
+        final long start;
+        volatile long end;
+        volatile long propagation;
+        volatile long subscribe;
+
+        MigrationEvent(String url, long start) {
+            this.url = url;
+            this.start = start;
+        }
+    }
 
+    List<MigrationEvent> migrations = Collections.synchronizedList(new ArrayList<>());
+
+    // one-way latency, from the send time stamped by the publisher.
+    private List<String> standbyUrls;
+    LatencyTracker latency;
+
+    private final Metrics registry = new Metrics("subscriber");
+    private final MigrationMetrics metrics = new MigrationMetrics(registry);
+    private final Metrics.Counter replies = registry.counter("nats_migrate_replies", "outcome=\"sent\"", "Replies to requests.");
+    private final Metrics.Counter repliesFailed = registry.counter("nats_migrate_replies", "outcome=\"failed\"", "Replies to requests.");
+    private int metricsPort = -1;
+    private String instanceId = ControlPlane.defaultInstanceId();
+    private TargetSelector.ScoringPolicy scoring = TargetSelector.BALANCED;
+    private String monitor = Integer.toString(ServerMonitor.DEFAULT_PORT_OFFSET);
+
+    // the worker stage between the dispatchers and process(), if any.
+    private int workers = 0;
+    private int queueSize = 1024;
+    private boolean virtualThreads = false;
+    private ShardedProcessor processor;
+    // waits out old connections' drains through the workers, off the
+    // common pool.
+    private ExecutorService drainer;
+
+    // With fanout the subscriber holds a queue subscription on each of the
+    // subjects, spread round robin over the dispatchers.
+    private String[] subjects;
+    private int fanout = 0;
+    private int dispatcherCount = 1;
+
+    // what the dispatchers received, each counting into a stripe of its own.
+    private volatile ReceiveCounters counters = new ReceiveCounters(0);
+    private volatile List<Dispatcher> dispatchers;
+
+    private Path recordDir;
+    private long segmentSize = TrafficLog.DEFAULT_SEGMENT_SIZE;
+    private volatile TrafficLog.Writer recorder;
+
+    // when messages arrive, around every migration command in the fleet.
+    private final ReceiveTimeline timeline = new ReceiveTimeline();
+    private long stallMillis = 10000;
+
+    // the highest publisher migration epoch seen in a payload.
+    private volatile int pubEpoch = 0;
+
+    CountDownLatch readyLatch = new CountDownLatch(1);
     CountDownLatch startLatch = new CountDownLatch(1);
     CountDownLatch stopLatch = new CountDownLatch(1);
+    private volatile double receiveRate;
 
     public NatsLossSubscriber(String server, String subject) {
         this.server = server;
         this.subject = subject;
+        this.subjects = new String[] {subject};
+        this.latency = new LatencyTracker(5);
+        registry.counter("nats_migrate_received_messages", "Messages received.", () -> counters.messages());
+        registry.counter("nats_migrate_received_bytes", "Payload bytes received.", () -> counters.bytes());
+        registry.gauge("nats_migrate_receive_queue_depth", "Messages queued for the receive workers.",
+            () -> processor == null ? 0 : processor.pending());
+        registry.gauge("nats_migrate_receive_queue_blocks", "Times a dispatcher blocked on a full receive worker queue.",
+            () -> processor == null ? 0 : processor.blocked());
+    }
+
+    public void setLatencyInterval(int seconds) {
+        this.latency = new LatencyTracker(seconds);
+    }
+
+    // Keeps connections to these servers warm for migrations.
+    public void setStandbyServers(List<String> urls) {
+        this.standbyUrls = urls;
+    }
+
+    // Processes messages on workers threads rather than the dispatcher,
+    // each with a queue of queueSize messages.
+    public void setWorkers(int workers, int queueSize, boolean virtualThreads) {
+        this.workers = workers;
+        this.queueSize = queueSize;
+        this.virtualThreads = virtualThreads;
+    }
+
+    // Subscribes to <subject>.0 through <subject>.<n-1> rather than
+    // <subject>, over the given number of dispatchers.
+    public void setFanout(int n, int dispatchers) {
+        this.fanout = n;
+        this.dispatcherCount = dispatchers;
+        this.subjects = new String[n];
+        for (int k = 0; k < n; k++) {
+            subjects[k] = subject + "." + k;
+        }
+        this.counters = new ReceiveCounters(n);
+    }
+
+    // Names this instance in its control subject,
+    // control.migrate.subscriber.<instanceId>.
+    public void setInstanceId(String id) {
+        this.instanceId = id;
+    }
+
+    // Scores the candidates of migration requests that list several with
+    // policy, reading their client counts from the monitoring endpoints
+    // that monitor maps them to (see ServerMonitor.mapping).
+    public void setTargetSelection(TargetSelector.ScoringPolicy policy, String monitor) {
+        this.scoring = policy;
+        this.monitor = monitor;
+    }
+
+    // Records every data message received to a traffic log in dir.
+    public void setRecording(Path dir, long segmentSize) {
+        this.recordDir = dir;
+        this.segmentSize = segmentSize;
+    }
+
+    // Ends the run once no message has arrived for millis.
+    public void setStallTimeout(long millis) {
+        this.stallMillis = millis;
+    }
+
+    // Serves metrics over HTTP on port; they are always available over JMX.
+    public void setMetricsPort(int port) {
+        this.metricsPort = port;
+    }
+
+    // The first message of a new epoch tells us the publisher migrated.
+    private synchronized void publisherMigrated(int epoch, long now) {
+        while (pubEpoch < epoch) {
+            pubEpoch++;
+            latency.closeWindow(latency.openWindow("publisher migration " + pubEpoch, now), now);
+        }
     }
 
     @Override
@@ -68,6 +237,7 @@ public class NatsLossSubscriber implements ErrorListener, ConnectionListener {
 
     @Override
     public void slowConsumerDetected(Connection conn, Consumer consumer) {
+        metrics.slowConsumers.increment();
         System.out.println("NATS Loss Subscriber Slow consumer");
     }
 
@@ -76,74 +246,330 @@ public class NatsLossSubscriber implements ErrorListener, ConnectionListener {
         if (type == Events.CONNECTED || type == Events.DISCOVERED_SERVERS || type == Events.RESUBSCRIBED)
             return;
 
+        if (type == Events.RECONNECTED) {
+            metrics.reconnects.increment();
+        }
         System.out.println("NATS Loss Subscriber Connection Event: " + type);
     }
 
-    MessageHandler msgHandler = new MessageHandler() {
-        boolean started = false;
+    /**
+     * Handles what one dispatcher delivers, counting and timing into the
+     * dispatcher's own stripes.  Allocates nothing beyond what the client
+     * already has for each message.
+     */
+    class Receiver implements MessageHandler {
+        private final ReceiveCounters.Stripe stripe;
+        private final LatencyHistogram latencies;
+
+        Receiver(ReceiveCounters.Stripe stripe, LatencyHistogram latencies) {
+            this.stripe = stripe;
+            this.latencies = latencies;
+        }
 
         @Override
         public void onMessage(Message msg) throws InterruptedException {
-            if (!started) {
-                pubCount = Integer.parseInt(new String(msg.getData(), StandardCharsets.UTF_8));
-                System.out.printf("Received start message from publisher, expecting %d messages.\n", pubCount);
-                startLatch.countDown();
-                started = true;
+            byte[] data = msg.getData();
+            // with several dispatchers, data on another subject can beat the
+            // start message, so it is recognised by its magic, not by order.
+            if (Payload.isStart(data)) {
+                started(data);
                 return;
             }
 
-            if (msg.getData().length > 0) {
-                count.incrementAndGet();
-            } else {
+            if (data.length == 0) {
                 stopLatch.countDown();
+                return;
+            }
+            boolean batch = Batch.isBatch(data);
+            int n = batch ? Batch.frames(data) : 1;
+            long now = System.nanoTime();
+            timeline.arrived(now, n);
+            stripe.add(n, batch ? data.length - Batch.HEADER_SIZE - (long)n * Batch.FRAME_HEADER_SIZE : data.length,
+                fanout == 0 ? -1 : subjectIndex(msg.getSubject()));
+            if (recorder != null) {
+                record(msg, now);
+            }
+            if (processor == null) {
+                process(msg, latencies);
+            } else {
+                // shard by publisher so each sequence is tracked in order.
+                // A batch holds a single publishing worker's messages.
+                long key = batch ? Payload.publisherId(data, Batch.HEADER_SIZE + Batch.FRAME_HEADER_SIZE)
+                    : Payload.isStamped(data) ? Payload.publisherId(data) : msg.getSubject().hashCode();
+                processor.submit(key, msg);
             }
         }
-    };
+    }
+
+    // A handler for a new dispatcher.
+    Receiver newReceiver() {
+        return new Receiver(counters.newStripe(), latency.newStripe());
+    }
+
+    // A handler for a new worker, timing into a stripe of its own.
+    private MessageHandler newWorker() {
+        LatencyHistogram latencies = latency.newStripe();
+        return msg -> process(msg, latencies);
+    }
+
+    private synchronized void started(byte[] data) {
+        if (started) {
+            return;
+        }
+        pubCount = Payload.startCount(data);
+        System.out.printf("Received start message from publisher, expecting %d messages.\n", pubCount);
+        timeline.start(System.nanoTime());
+        startLatch.countDown();
+        started = true;
+    }
+
+    // Records a message, or each message in a batch, so the log replays
+    // without packing.
+    private void record(Message msg, long now) {
+        TrafficLog.Writer w = recorder;
+        byte[] data = msg.getData();
+        try {
+            if (!Batch.isBatch(data)) {
+                w.append(msg.getSubject(), data, now);
+                return;
+            }
+            int off = Batch.HEADER_SIZE;
+            for (int i = Batch.frames(data); i > 0 && off + Batch.FRAME_HEADER_SIZE <= data.length; i--) {
+                int len = Batch.frameLength(data, off);
+                off += Batch.FRAME_HEADER_SIZE;
+                if (len < 0 || len > data.length - off) {
+                    break;
+                }
+                w.append(msg.getSubject(), data, off, len, now);
+                off += len;
+            }
+        } catch (Exception e) {
+            System.out.println("Stopped recording: " + e.getMessage());
+            recorder = null;
+        }
+    }
+
+    // Times and tracks a data message, or each message packed in a batch,
+    // on the dispatcher or a worker, into that thread's latencies.
+    void process(Message msg, LatencyHistogram latencies) {
+        byte[] data = msg.getData();
+        if (!Batch.isBatch(data)) {
+            process(data, 0, data.length, latencies);
+        } else {
+            // read the frames in place.  A truncated batch can't come from
+            // the publisher, but mustn't take the dispatcher down.
+            int off = Batch.HEADER_SIZE;
+            for (int i = Batch.frames(data); i > 0 && off + Batch.FRAME_HEADER_SIZE <= data.length; i--) {
+                int len = Batch.frameLength(data, off);
+                off += Batch.FRAME_HEADER_SIZE;
+                if (len < 0 || len > data.length - off) {
+                    break;
+                }
+                process(data, off, len, latencies);
+                off += len;
+            }
+        }
+        if (msg.getReplyTo() != null) {
+            reply(msg);
+        }
+    }
+
+    // Times and tracks the payload of len bytes at off in data.  Sequence
+    // trackers are per publisher, not per thread: they're only contended
+    // when one publisher's messages arrive on several dispatchers at once
+    // with no workers to shard them.
+    private void process(byte[] data, int off, int len, LatencyHistogram latencies) {
+        if (len >= Payload.HEADER_SIZE) {
+            latencies.record(Payload.wallNanos() - Payload.sendTime(data, off));
+            int epoch = Payload.epoch(data, off);
+            if (epoch > pubEpoch) {
+                publisherMigrated(epoch, System.nanoTime());
+            }
+            SequenceTracker t = tracker(Payload.publisherId(data, off));
+            t.record(Payload.sequence(data, off), epoch, System.nanoTime());
+        }
+    }
+
+    private SequenceTracker tracker(long id) {
+        for (SequenceTracker t : trackers) {
+            if (t.publisherId() == id) {
+                return t;
+            }
+        }
+        return newTracker(id);
+    }
+
+    private synchronized SequenceTracker newTracker(long id) {
+        SequenceTracker[] ts = trackers;
+        for (SequenceTracker t : ts) {
+            if (t.publisherId() == id) {
+                return t;
+            }
+        }
+        SequenceTracker t = new SequenceTracker(id);
+        ts = Arrays.copyOf(ts, ts.length + 1);
+        ts[ts.length - 1] = t;
+        trackers = ts;
+        return t;
+    }
+
+    // Answers a request with its header, on the connection it arrived on.
+    private void reply(Message msg) {
+        byte[] data = msg.getData();
+        try {
+            msg.getConnection().publish(msg.getReplyTo(), Arrays.copyOf(data, Math.min(data.length, Payload.HEADER_SIZE)));
+            replies.increment();
+        } catch (IllegalStateException e) {
+            // the connection closed before the workers got to the request.
+            repliesFailed.increment();
+        }
+    }
+
+    // The results of a run, for the migration harness.
+
+    int expected() {
+        return pubCount;
+    }
+
+    long received() {
+        return counters.messages();
+    }
+
+    long duplicates() {
+        long d = 0;
+        for (SequenceTracker t : trackers) {
+            d += t.duplicates();
+        }
+        return d;
+    }
+
+    double receiveRate() {
+        return receiveRate;
+    }
+
+    long[] blackouts() {
+        return timeline.blackouts();
+    }
+
+    // Parses the index from <subject>.<index> without allocating.
+    private static int subjectIndex(String s) {
+        int k = 0;
+        int scale = 1;
+        for (int i = s.length() - 1; i >= 0; i--) {
+            char c = s.charAt(i);
+            if (c == '.') {
+                return scale > 1 ? k : -1;
+            }
+            if (c < '0' || c > '9' || scale > 100000000) {
+                return -1;
+            }
+            k += (c - '0') * scale;
+            scale *= 10;
+        }
+        return -1;
+    }
 
     ControlPlane.MigrationHandler lmh = new ControlPlane.MigrationHandler() {
 
-         @Override
-        public Connection migrate(String url) throws Exception {
+        @Override
+        public CompletableFuture<Connection> migrate(ControlPlane.Migration m) {
+            return m.submit(() -> migrate(m.url(), m.ready(), m));
+        }
+
+        private Connection migrate(String url, List<Connection> ready, ControlPlane.Migration m) throws Exception {
             Connection oldConn;
+            MigrationEvent event = new MigrationEvent(url, System.nanoTime());
+            migrations.add(event);
+            LatencyTracker.Window window = latency.openWindow(
+                "subscriber migration " + migrations.size() + " to " + url, event.start);
 
             // Create a connection the the new server
             System.out.println("Connecting to server at:  " + url == null ? "locahost:4222" : url);
-            Connection newConn = Nats.connect(getOptions(url));
+            long phase = System.nanoTime();
+            m.progress("connecting");
+            Connection newConn;
+            try {
+                newConn = ready.isEmpty() ? Nats.connect(getOptions(url)) : ready.get(0);
+            } catch (Exception e) {
+                // unreachable, or interrupted by a cancel.
+                event.end = System.nanoTime();
+                latency.closeWindow(window, event.end);
+                throw e;
+            }
+            metrics.connect.record(System.nanoTime() - phase);
+            if (m.isCancelled()) {
+                newConn.close();
+                m.checkCancelled();
+            }
             synchronized (connLock) {
                 oldConn = conn;
             }
 
-            // create an additional queue subscriber to start load 
-            // balancing on the new server.
-            System.out.println("Load balancing subscriber.");
-            Dispatcher d = newConn.createDispatcher(msgHandler);
-            d.subscribe(subject, qgroup);
-            newConn.flush(Duration.ofSeconds(5));
-
-            // Sleep to ensure interest is propagated from the new NATS 
-            // server, so we won't lose messages.  Ideally, this would
-            // be a message retried on a unique subject until received,
-            // but here we'll cheat a bit.
-            Thread.sleep(1000);
+            List<Dispatcher> ds;
+            try {
+                // create an additional queue subscriber to start load 
+                // balancing on the new server.
+                System.out.println("Load balancing subscriber.");
+                phase = System.nanoTime();
+                ds = subscribeAll(newConn);
+                event.subscribe = System.nanoTime() - phase;
+                metrics.subscribe.record(event.subscribe);
+                if (subjects.length > 1) {
+                    System.out.printf("Subscribed to %d subjects in %.3f ms.\n", subjects.length, event.subscribe / 1000000.0);
+                }
+                m.progress("subscribed");
+
+                // Make sure interest has propagated from the new NATS server
+                // before draining the old connection, so we won't lose messages.
+                event.propagation = awaitInterest(oldConn, newConn);
+                metrics.propagation.record(event.propagation);
+                // last chance to back out before the swap.
+                m.commit();
+            } catch (Exception e) {
+                // the new queue subscribers may already hold messages, so
+                // drain rather than close the connection, even if a cancel
+                // interrupted us, e.g. while subscribing on a fanout.
+                Thread.interrupted();
+                try {
+                    // the client leaves a connection it fails to drain
+                    // draining for good, so only drain one that answers.
+                    newConn.flush(Duration.ofSeconds(5));
+                    metrics.drain(newConn, Duration.ofSeconds(5));
+                } catch (Exception de) {
+                    newConn.close();
+                }
+                event.end = System.nanoTime();
+                latency.closeWindow(window, event.end);
+                throw e;
+            }
 
             // reassign the conn for use later in the program.  We synchronize
             // this to prevent race conditions.
             synchronized (connLock) {
                 conn = newConn;
             }
+            List<Dispatcher> oldDs = dispatchers;
+            dispatchers = ds;
             
             // drain the old connection, which will unsubscribe the 
             // old subscriber and then close it.  When the old subscriber 
             // unsubscribes, all new data will go to the new subscriber
             // created above.
             System.out.println("Draining the connection.");
+            m.progress("draining");
             try  {
-                oldConn.drain(Duration.ofSeconds(5));
+                if (processor == null) {
+                    metrics.drain(oldConn, Duration.ofSeconds(5));
+                } else {
+                    drainThroughWorkers(oldConn, oldDs);
+                }
             } catch (Exception e) {
                 e.printStackTrace();
                 // NOOP.
             }
 
+            event.end = System.nanoTime();
+            latency.closeWindow(window, event.end);
             System.out.println("Done with migration.");
 
             return newConn;
@@ -156,6 +582,65 @@ public class NatsLossSubscriber implements ErrorListener, ConnectionListener {
         }
     };
 
+    // With workers, requests may still be queued when the old dispatchers
+    // are done, and their replies go out on the old connection.  So drain
+    // the subscriptions first, let the workers catch up, and only then
+    // drain and close the connection.  The wait runs on the drainer, so it
+    // doesn't hold a common pool thread.
+    private void drainThroughWorkers(Connection oldConn, List<Dispatcher> oldDs) throws InterruptedException {
+        CompletableFuture<?>[] subs = new CompletableFuture<?>[oldDs.size()];
+        for (int i = 0; i < subs.length; i++) {
+            subs[i] = oldDs.get(i).drain(Duration.ofSeconds(5));
+        }
+        CompletableFuture.allOf(subs).whenCompleteAsync((v, e) -> {
+            if (!processor.awaitProcessed(5, TimeUnit.SECONDS)) {
+                System.out.printf("Workers still have %d messages queued after the drain.\n", processor.pending());
+            }
+            try {
+                metrics.drain(oldConn, Duration.ofSeconds(5));
+            } catch (Exception de) {
+                System.out.println("Unable to drain the old connection: " + de.getMessage());
+            }
+        }, drainer);
+    }
+
+    // Publishes probes on a unique subject through the old connection until
+    // a subscription on the new connection receives one.  The probe
+    // subscription is made after the queue subscription, and the servers
+    // propagate interest in order, so once a probe arrives the queue
+    // subscription is known across the cluster.  Returns the time taken.
+    private long awaitInterest(Connection oldConn, Connection newConn) throws Exception {
+        if (oldConn.getStatus() != Connection.Status.CONNECTED) {
+            // nothing to route through; the old server is likely down.
+            System.out.println("Old connection is not connected, skipping the interest probe.");
+            return 0;
+        }
+
+        String probe = newConn.createInbox();
+        CountDownLatch received = new CountDownLatch(1);
+        Dispatcher pd = newConn.createDispatcher(m -> received.countDown());
+        pd.subscribe(probe);
+        newConn.flush(Duration.ofSeconds(5));
+
+        long start = System.nanoTime();
+        int probes = 0;
+        try {
+            do {
+                oldConn.publish(probe, null);
+                oldConn.flush(Duration.ofSeconds(5));
+                probes++;
+                if (received.await(PROBE_RETRY_MILLIS, TimeUnit.MILLISECONDS)) {
+                    long elapsed = System.nanoTime() - start;
+                    System.out.printf("Interest propagated in %.3f ms after %d probes.\n", elapsed / 1000000.0, probes);
+                    return elapsed;
+                }
+            } while (System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(PROBE_TIMEOUT_MILLIS));
+        } finally {
+            newConn.closeDispatcher(pd);
+        }
+        throw new TimeoutException("interest did not propagate within " + PROBE_TIMEOUT_MILLIS + "ms after " + probes + " probes");
+    }
+
     public Options getOptions(String url) {
         return new Options.Builder().
             server(url).
@@ -171,62 +656,236 @@ public class NatsLossSubscriber implements ErrorListener, ConnectionListener {
 
     public Connection connect(String url) throws Exception {
         Connection nc = Nats.connect(getOptions(server));
-        Dispatcher d = nc.createDispatcher(msgHandler);
-        d.subscribe(subject, qgroup);
-        nc.flush(Duration.ofSeconds(5));
+        dispatchers = subscribeAll(nc);
         return nc;
     }
 
+    // Creates the dispatchers and queue subscriptions on nc, and waits for
+    // the server to have them all.
+    private List<Dispatcher> subscribeAll(Connection nc) throws Exception {
+        List<Dispatcher> ds = new ArrayList<>(dispatcherCount);
+        for (int i = 0; i < dispatcherCount; i++) {
+            ds.add(nc.createDispatcher(newReceiver()));
+        }
+        for (int k = 0; k < subjects.length; k++) {
+            ds.get(k % dispatcherCount).subscribe(subjects[k], qgroup);
+        }
+        nc.flush(Duration.ofSeconds(5));
+        return ds;
+    }
+
+    // Waits for the dispatchers to hand over what they received before the
+    // EOS, which came through only one of them.
+    private void awaitDispatchers(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Dispatcher d : dispatchers) {
+            while (d.getPendingMessageCount() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    // Spreads each publisher's missing sequences over the subjects they
+    // were sent on, which the publisher picks by sequence % fanout.
+    // Messages lost after a publisher's highest received sequence only
+    // show in the totals.
+    private void reportSubjects() {
+        long[] expected = new long[fanout];
+        long[] missing = new long[fanout];
+        for (SequenceTracker t : trackers) {
+            t.addByResidue(fanout, expected, missing);
+        }
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        List<Integer> lossy = new ArrayList<>();
+        for (int k = 0; k < fanout; k++) {
+            long n = counters.subject(k);
+            min = Math.min(min, n);
+            max = Math.max(max, n);
+            if (missing[k] > 0) {
+                lossy.add(k);
+            }
+        }
+        System.out.printf("Subjects: %d on %d dispatchers, received %d to %d per subject, %d subjects with loss\n",
+            fanout, dispatcherCount, min, max, lossy.size());
+        lossy.sort((a, b) -> Long.compare(missing[b], missing[a]));
+        for (int i = 0; i < lossy.size() && i < 10; i++) {
+            int k = lossy.get(i);
+            System.out.printf("  %s: missing %d of %d (%.3f%%)\n", subjects[k], missing[k], expected[k],
+                100.0 * missing[k] / expected[k]);
+        }
+        if (lossy.size() > 10) {
+            System.out.printf("  ... %d more subjects with loss\n", lossy.size() - 10);
+        }
+    }
+
     public void Run() throws Exception {
          
         System.out.println();
-        System.out.printf("Trying to connect to %s and listen to %s for messages.\n", server, subject);
+        if (fanout > 0) {
+            System.out.printf("Trying to connect to %s and listen to %s.0 to %s.%d for messages on %d dispatchers.\n",
+                server, subject, subject, fanout - 1, dispatcherCount);
+        } else {
+            System.out.printf("Trying to connect to %s and listen to %s for messages.\n", server, subject);
+        }
+        if (workers > 1) {
+            // a publisher's messages are one key, so workers only run in
+            // parallel with as many publishing workers.
+            System.out.printf("Processing on %d workers sharded by publisher; each publishing worker keeps one busy.\n", workers);
+        }
         System.out.println();
 
+        if (recordDir != null) {
+            recorder = new TrafficLog.Writer(recordDir, segmentSize);
+        }
+        if (workers > 0) {
+            processor = new ShardedProcessor(workers, queueSize, virtualThreads, this::newWorker);
+            drainer = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "receive-drain");
+                t.setDaemon(true);
+                return t;
+            });
+        }
         conn = connect(server);
-        new ControlPlane(conn, lmh, "subscriber");
+        StandbyPool standbys = null;
+        if (standbyUrls != null) {
+            standbys = new StandbyPool(standbyUrls, this::getOptions, 1);
+        }
+        ControlPlane cp = new ControlPlane(conn, lmh, "subscriber", instanceId, standbys, metrics);
+        cp.setTargetSelector(new TargetSelector(scoring, TargetSelector.DEFAULT_TTL_MILLIS,
+            ServerMonitor.mapping(monitor), this::getOptions));
+        cp.watchCommands((subj, body, now) -> {
+            if (cp.isMigrationFor(subj, body)) {
+                timeline.command(subj + " " + body, now);
+            }
+        });
+        try {
+            registry.registerMBean();
+            if (metricsPort >= 0) {
+                registry.serve(metricsPort);
+            }
+        } catch (Exception e) {
+            System.out.println("Unable to expose metrics: " + e.getMessage());
+        }
+        readyLatch.countDown();
+        System.out.println("Subscribed, waiting for the publisher's start message.");
 
         // wait for the first message
         startLatch.await();
 
         long startTime = System.nanoTime();
 
-        // check every 10 seconds for a stall in case the
-        // producer failed.
+        // bucket arrivals every 100ms, and end the run on a stall in case
+        // the producer failed.
+        long stallNanos = TimeUnit.MILLISECONDS.toNanos(stallMillis);
         Timer t = new Timer();
         t.scheduleAtFixedRate(new TimerTask() {
-            int lastCount = 0;
             public void run() {
-                int cur = count.get();
-                if (lastCount == cur) {
+                long now = System.nanoTime();
+                timeline.tick(now);
+                if (timeline.idle(now) >= stallNanos) {
+                    System.out.printf("No messages for %d ms, ending the run.\n", stallMillis);
                     stopLatch.countDown();
                 }
-                lastCount = count.get();
             }
-        }, 10000, 10000);
+        }, ReceiveTimeline.BUCKET_NANOS / 1000000, ReceiveTimeline.BUCKET_NANOS / 1000000);
+
+        // snapshot latency every second for interval and migration reports.
+        t.scheduleAtFixedRate(new TimerTask() {
+            public void run() {
+                latency.tick(System.nanoTime(), startTime);
+            }
+        }, 1000, 1000);
 
         stopLatch.await();
+        t.cancel();
+        timeline.tick(System.nanoTime());
+        if (dispatcherCount > 1) {
+            awaitDispatchers(5, TimeUnit.SECONDS);
+        }
+        if (processor != null) {
+            // let the workers finish what arrived before the EOS.
+            if (!processor.awaitProcessed(5, TimeUnit.SECONDS)) {
+                System.out.printf("Workers still have %d messages queued.\n", processor.pending());
+            }
+            processor.close();
+            drainer.shutdown();
+        }
 
         long elapsed = System.nanoTime() - startTime;
 
-        int finalCount = count.get();
+        long finalCount = counters.messages();
+        receiveRate = (double)finalCount / ((double)elapsed / (double)NANOSPERSEC);
         System.out.printf("Done.  Received %d of %d messages.\n", finalCount, pubCount);
-        System.out.printf("Message Rate: %.2f msgs/sec\n", (double)finalCount / ((double)elapsed / (double)NANOSPERSEC));
+        System.out.printf("Message Rate: %.2f msgs/sec\n", receiveRate);
         System.out.printf("Loss Percentage: %f\n", 100.0*((double)pubCount - (double)finalCount) / (double)pubCount);
 
+        synchronized (migrations) {
+            for (int i = 0; i < migrations.size(); i++) {
+                MigrationEvent e = migrations.get(i);
+                System.out.printf("Subscriber migration %d to %s: %.3f ms, resubscribed %d subjects in %.3f ms, interest propagated in %.3f ms\n",
+                    i + 1, e.url, (e.end - e.start) / 1000000.0, subjects.length, e.subscribe / 1000000.0,
+                    e.propagation / 1000000.0);
+            }
+        }
+        if (replies.get() > 0 || repliesFailed.get() > 0) {
+            System.out.printf("Replied to %d requests, %d replies failed\n", replies.get(), repliesFailed.get());
+        }
+        for (SequenceTracker tracker : trackers) {
+            tracker.report(startTime, migrations);
+        }
+        if (fanout > 0) {
+            reportSubjects();
+        }
+        timeline.report(startTime);
+        latency.report(startTime);
+        if (recordDir != null) {
+            TrafficLog.Writer w = recorder;
+            recorder = null;
+            if (w != null) {
+                System.out.printf("Recorded %d messages to %s\n", w.entries(), recordDir);
+                w.close();
+            }
+        }
+
+        cp.close();
         synchronized (connLock) {
             conn.close();
         }
+        if (standbys != null) {
+            standbys.close();
+        }
+        registry.close();
     }
 
     public static void main(String args[]) {
         String subject;
         String server;
+        int interval = 5;
+        List<String> standbyUrls = null;
+        int metricsPort = -1;
+        String instanceId = null;
+        String scoring = "balanced";
+        String monitor = Integer.toString(ServerMonitor.DEFAULT_PORT_OFFSET);
+        int workers = 0;
+        int queueSize = 1024;
+        boolean virtualThreads = false;
+        int fanout = 0;
+        int dispatchers = 1;
+        long stallMillis = 10000;
+        Path recordDir = null;
+        long segmentSize = TrafficLog.DEFAULT_SEGMENT_SIZE;
+
+        // positional arguments come first, followed by options.
+        int positional = 0;
+        while (positional < args.length && !args[positional].startsWith("-")) {
+            positional++;
+        }
 
-        if (args.length == 2) {
+        if (positional == 2) {
             server = args[0];
             subject = args[1];
-        } else if (args.length == 0) {
+        } else if (positional == 0) {
             server = Options.DEFAULT_URL;
             subject = "foo";
         } else {
@@ -234,8 +893,88 @@ public class NatsLossSubscriber implements ErrorListener, ConnectionListener {
             return;
         }
 
+        for (int i = positional; i < args.length; i += 2) {
+            if (i + 1 >= args.length) {
+                usage();
+            }
+            switch (args[i]) {
+                case "-interval":
+                    interval = Integer.parseInt(args[i+1]);
+                    break;
+                case "-standby":
+                    standbyUrls = Arrays.asList(args[i+1].split(","));
+                    break;
+                case "-instance":
+                    instanceId = args[i+1];
+                    break;
+                case "-scoring":
+                    scoring = args[i+1];
+                    break;
+                case "-monitor":
+                    monitor = args[i+1];
+                    break;
+                case "-metrics":
+                    metricsPort = Integer.parseInt(args[i+1]);
+                    break;
+                case "-workers":
+                    workers = Integer.parseInt(args[i+1]);
+                    break;
+                case "-threads":
+                    if (!"platform".equals(args[i+1]) && !"virtual".equals(args[i+1])) {
+                        usage();
+                    }
+                    virtualThreads = "virtual".equals(args[i+1]);
+                    break;
+                case "-queue":
+                    queueSize = Integer.parseInt(args[i+1]);
+                    break;
+                case "-fanout":
+                    fanout = Integer.parseInt(args[i+1]);
+                    break;
+                case "-dispatchers":
+                    dispatchers = Integer.parseInt(args[i+1]);
+                    break;
+                case "-stall":
+                    stallMillis = Long.parseLong(args[i+1]);
+                    break;
+                case "-record":
+                    recordDir = Paths.get(args[i+1]);
+                    break;
+                case "-segment":
+                    segmentSize = Long.parseLong(args[i+1]) * 1024 * 1024;
+                    break;
+                default:
+                    usage();
+            }
+        }
+
+        if (fanout < 0 || dispatchers < 1 || (dispatchers > 1 && fanout < dispatchers)) {
+            System.err.println("Error:  need at least one dispatcher, and a fanout subject for each");
+            System.exit(1);
+        }
+
         try {
-            new NatsLossSubscriber(server, subject).Run();        
+            NatsLossSubscriber sub = new NatsLossSubscriber(server, subject);
+            sub.setLatencyInterval(interval);
+            sub.setStandbyServers(standbyUrls);
+            sub.setMetricsPort(metricsPort);
+            if (instanceId != null) {
+                sub.setInstanceId(instanceId);
+            }
+            try {
+                sub.setTargetSelection(TargetSelector.policy(scoring), monitor);
+            } catch (IllegalArgumentException e) {
+                usage();
+            }
+            if (fanout > 0) {
+                sub.setFanout(fanout, dispatchers);
+            }
+            sub.setStallTimeout(stallMillis);
+            sub.setWorkers(workers, queueSize, virtualThreads);
+            if (recordDir != null) {
+                sub.setRecording(recordDir, segmentSize);
+            }
+            sub.Run();
         } catch (Exception exp) {
             exp.printStackTrace();
         }
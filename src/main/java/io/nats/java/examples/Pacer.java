@@ -0,0 +1,254 @@
+// Copyright 2020 Colin Sullivan
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.java.examples;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces a publishing loop to a target rate.
+ *
+ * The pacer is a token bucket keyed to System.nanoTime.  Callers ask for
+ * permission to send a batch of messages with acquire(); the pacer waits
+ * until the batch is due, then returns the number of messages that may be
+ * sent.  Long waits park the thread, and the last stretch before the due
+ * time is spun, since parking can overshoot by tens of microseconds.
+ *
+ * Subclasses decide how far apart batches are, which gives the arrival
+ * pattern.  A pacer is used by a single thread.
+ */
+public abstract class Pacer {
+
+    static final private int NANOSPERSEC = 1000000000;
+
+    // Remaining waits shorter than this are spun rather than parked.  With
+    // a single CPU spinning would starve the client's own threads, so we
+    // only park.
+    static final private long SPIN_NANOS = Runtime.getRuntime().availableProcessors() > 1 ? 50000 : 0;
+
+    // Batches are sized so that we wait roughly this often.
+    static final private long BATCH_NANOS = 10000;
+
+    // How far behind schedule the pacer may fall, e.g. during a stall,
+    // and still catch up by sending at full speed.
+    static final private long MAX_CREDIT_NANOS = NANOSPERSEC / 10;
+
+    protected final double rate;
+    protected final double interval;
+    protected final int batch;
+
+    private boolean started;
+    private long start;
+    private double due;
+
+    // lateness of each batch relative to its due time, in nanos.
+    private long batches;
+    private double lateMean;
+    private double lateM2;
+    private long lateMax;
+
+    protected Pacer(double rate, int batch) {
+        this.rate = rate;
+        this.interval = NANOSPERSEC / rate;
+        if (batch < 1) {
+            batch = (int)Math.max(1, BATCH_NANOS / interval);
+        }
+        this.batch = batch;
+    }
+
+    /**
+     * Returns the number of nanos the next batch of n messages occupies on
+     * the schedule.
+     */
+    protected abstract double nextBatch(int n);
+
+    /**
+     * Returns the name of the arrival mode, for reporting.
+     */
+    public abstract String mode();
+
+    /**
+     * Waits until the next batch is due and returns the number of messages
+     * in it.
+     */
+    public int acquire() throws InterruptedException {
+        long now = System.nanoTime();
+        if (!started) {
+            started = true;
+            start = now;
+            due = 0;
+        }
+
+        long dueAt = start + (long)due;
+        long late = now - dueAt;
+        if (late < 0) {
+            waitUntil(dueAt);
+            late = System.nanoTime() - dueAt;
+        } else if (late > MAX_CREDIT_NANOS) {
+            // we've fallen too far behind; forfeit the tokens beyond the
+            // depth of the bucket rather than bursting to catch up.
+            due = (now - start) - MAX_CREDIT_NANOS;
+        }
+
+        record(late);
+        due += nextBatch(batch);
+        return batch;
+    }
+
+    private static void waitUntil(long deadline) throws InterruptedException {
+        for (;;) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return;
+            }
+            if (remaining > SPIN_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_NANOS);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    private void record(long late) {
+        batches++;
+        double d = late - lateMean;
+        lateMean += d / batches;
+        lateM2 += d * (late - lateMean);
+        if (late > lateMax) {
+            lateMax = late;
+        }
+    }
+
+    /**
+     * Prints the rate error and jitter for a run that sent the given number
+     * of messages over the elapsed nanos.
+     */
+    public void report(long sent, long elapsed) {
+        double achieved = (double)sent / ((double)elapsed / (double)NANOSPERSEC);
+        double stddev = batches > 1 ? Math.sqrt(lateM2 / (batches - 1)) : 0;
+        System.out.printf("Pacer: %s, target %.0f msgs/sec, achieved %.0f msgs/sec, error %.3f%%\n",
+            mode(), rate, achieved, 100.0 * (achieved - rate) / rate);
+        System.out.printf("Pacer jitter: %d batches of %d, lateness mean %.2f us, stddev %.2f us, max %.2f us\n",
+            batches, batch, lateMean / 1000.0, stddev / 1000.0, lateMax / 1000.0);
+    }
+
+    /**
+     * Sends at a constant rate.
+     */
+    public static class Constant extends Pacer {
+        public Constant(double rate, int batch) {
+            super(rate, batch);
+        }
+
+        @Override
+        protected double nextBatch(int n) {
+            return n * interval;
+        }
+
+        @Override
+        public String mode() {
+            return "constant";
+        }
+    }
+
+    /**
+     * Sends bursts of back to back messages, idling between bursts so the
+     * average is the target rate.  This is the constant schedule with one
+     * burst per batch; only the batch size differs, which is set by the
+     * caller rather than sized from the rate.
+     */
+    public static class Burst extends Constant {
+        public Burst(double rate, int burst) {
+            super(rate, Math.max(1, burst));
+        }
+
+        @Override
+        public String mode() {
+            return "burst";
+        }
+    }
+
+    /**
+     * Sends with exponentially distributed gaps between messages, i.e. as a
+     * Poisson process whose mean is the target rate.
+     */
+    public static class Poisson extends Pacer {
+        public Poisson(double rate, int batch) {
+            super(rate, batch);
+        }
+
+        @Override
+        protected double nextBatch(int n) {
+            ThreadLocalRandom r = ThreadLocalRandom.current();
+            double gaps = 0;
+            for (int i = 0; i < n; i++) {
+                gaps -= Math.log(1.0 - r.nextDouble());
+            }
+            return gaps * interval;
+        }
+
+        @Override
+        public String mode() {
+            return "poisson";
+        }
+    }
+
+    /**
+     * Sends one message per batch at the arrival times recorded in a
+     * traffic log, with the gaps divided by speed.  The caller moves the
+     * reader to each message before acquiring it.  The target rate is the
+     * log's average rate at that speed.
+     */
+    public static class Replay extends Pacer {
+        private final TrafficLog.Reader log;
+        private final double speed;
+
+        Replay(TrafficLog.Reader log, double speed) {
+            super(log.count() * speed * NANOSPERSEC / Math.max(1, log.duration()), 1);
+            this.log = log;
+            this.speed = speed;
+        }
+
+        @Override
+        protected double nextBatch(int n) {
+            long next = log.peekNanos();
+            return next < 0 ? 0 : (next - log.nanos()) / speed;
+        }
+
+        @Override
+        public String mode() {
+            return "replay";
+        }
+    }
+
+    /**
+     * Creates a pacer by mode name; a batch of zero or less sizes batches
+     * automatically from the rate.
+     */
+    public static Pacer create(String mode, double rate, int batch) {
+        switch (mode) {
+            case "constant":
+                return new Constant(rate, batch);
+            case "burst":
+                return new Burst(rate, batch < 1 ? 100 : batch);
+            case "poisson":
+                return new Poisson(rate, batch);
+            default:
+                throw new IllegalArgumentException("unknown pacer mode: " + mode);
+        }
+    }
+}
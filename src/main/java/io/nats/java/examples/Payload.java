@@ -0,0 +1,166 @@
+// Copyright 2020 Colin Sullivan
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.java.examples;
+
+/**
+ * The header the loss publisher stamps at the front of every payload, so
+ * the subscriber can tell exactly which messages were lost.
+ *
+ * Fields are big endian:
+ *
+ *   0  publisher id (8 bytes), unique to a publishing worker
+ *   8  sequence (8 bytes), starting at 0 and increasing by one per message
+ *   16 epoch (4 bytes), the number of migrations the publisher had done
+ *      when the message was sent
+ *   20 send time (8 bytes), from wallNanos()
+ *
+ * The rest of the payload is filler.
+ *
+ * Before any stamped payload the publisher sends a start message carrying
+ * the number of messages to expect:
+ *
+ *   0  START_MAGIC (4 bytes)
+ *   4  count (4 bytes)
+ *
+ * It is shorter than any stamped payload, so it can't be mistaken for one
+ * whatever the publisher id.
+ */
+final class Payload {
+
+    static final int HEADER_SIZE = 28;
+
+    static final int START_MAGIC = 0x4e4c5330;
+    static final int START_SIZE = 8;
+
+    // offset from System.nanoTime to nanos since the epoch.
+    static final private long WALL_OFFSET = calibrate();
+
+    private Payload() {
+    }
+
+    static void stamp(byte[] b, long publisherId, long sequence, int epoch, long sendTime) {
+        stamp(b, 0, publisherId, sequence, epoch, sendTime);
+    }
+
+    // Stamps a payload starting at off, e.g. in a batch.
+    static void stamp(byte[] b, int off, long publisherId, long sequence, int epoch, long sendTime) {
+        putLong(b, off, publisherId);
+        putLong(b, off + 8, sequence);
+        putInt(b, off + 16, epoch);
+        putLong(b, off + 20, sendTime);
+    }
+
+    static byte[] start(int count) {
+        byte[] b = new byte[START_SIZE];
+        putInt(b, 0, START_MAGIC);
+        putInt(b, 4, count);
+        return b;
+    }
+
+    static boolean isStart(byte[] b) {
+        return b.length == START_SIZE && getInt(b, 0) == START_MAGIC;
+    }
+
+    static int startCount(byte[] b) {
+        return getInt(b, 4);
+    }
+
+    static boolean isStamped(byte[] b) {
+        return b.length >= HEADER_SIZE;
+    }
+
+    static long publisherId(byte[] b) {
+        return getLong(b, 0);
+    }
+
+    static long sequence(byte[] b) {
+        return getLong(b, 8);
+    }
+
+    static int epoch(byte[] b) {
+        return getInt(b, 16);
+    }
+
+    static long sendTime(byte[] b) {
+        return getLong(b, 20);
+    }
+
+    // The same fields of a payload starting at off, read in place.
+
+    static long publisherId(byte[] b, int off) {
+        return getLong(b, off);
+    }
+
+    static long sequence(byte[] b, int off) {
+        return getLong(b, off + 8);
+    }
+
+    static int epoch(byte[] b, int off) {
+        return getInt(b, off + 16);
+    }
+
+    static long sendTime(byte[] b, int off) {
+        return getLong(b, off + 20);
+    }
+
+    /**
+     * Returns nanos since the epoch with nanoTime resolution, so send times
+     * stamped by a publisher can be compared with receive times in a
+     * subscriber on the same host.
+     */
+    static long wallNanos() {
+        return System.nanoTime() + WALL_OFFSET;
+    }
+
+    // Lines nanoTime up with currentTimeMillis at the moment the millisecond
+    // ticks over, which is accurate to well under a millisecond.
+    private static long calibrate() {
+        long ms = System.currentTimeMillis();
+        long now;
+        while ((now = System.currentTimeMillis()) == ms) {
+            // spin until the next millisecond starts.
+        }
+        return now * 1000000L - System.nanoTime();
+    }
+
+    static void putLong(byte[] b, int off, long v) {
+        for (int i = 7; i >= 0; i--) {
+            b[off + i] = (byte)v;
+            v >>>= 8;
+        }
+    }
+
+    static long getLong(byte[] b, int off) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | (b[off + i] & 0xff);
+        }
+        return v;
+    }
+
+    static void putInt(byte[] b, int off, int v) {
+        for (int i = 3; i >= 0; i--) {
+            b[off + i] = (byte)v;
+            v >>>= 8;
+        }
+    }
+
+    static int getInt(byte[] b, int off) {
+        int v = 0;
+        for (int i = 0; i < 4; i++) {
+            v = (v << 8) | (b[off + i] & 0xff);
+        }
+        return v;
+    }
+}
@@ -0,0 +1,290 @@
+// Copyright 2020 Colin Sullivan
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.java.examples;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Generates the publisher's payloads.
+ *
+ * Sizes are drawn from a distribution and filled with a content type up
+ * front, into a ring of templates, so making a payload on the hot path is
+ * a copy of the next template and a stamp of its header; nothing is sampled
+ * or generated per message.  The ring is read only once built, and shared
+ * by every worker.
+ *
+ * The client holds on to a payload's array until it has been written, so
+ * templates can't be published directly; every message still gets its own
+ * array, as it would in a real application.
+ *
+ * Sizes are specified as:
+ *
+ *   fixed                  every payload is the message size
+ *   uniform:min-max        uniformly distributed between min and max bytes
+ *   lognormal:sigma        log-normal with the message size as the median
+ *   histogram:file         sampled from lines of "size weight" in file
+ *
+ * and content as zeros, random (incompressible bytes), text (compressible
+ * words) or json (a document with a sequence field).  The payload header
+ * always comes first, so sizes are at least Payload.HEADER_SIZE, and they
+ * are at most the server's default max_payload of 1MB.
+ */
+final class PayloadGenerator {
+
+    static final int DEFAULT_RING = 4096;
+
+    // the server's default max_payload; larger samples are cut down to it.
+    static final private int MAX_SIZE = 1024 * 1024;
+
+    // JSON payloads are the header followed by this document, with the
+    // sequence right aligned in the padding so the document stays valid.
+    static final private byte[] JSON_PREFIX = "{\"seq\":".getBytes(StandardCharsets.UTF_8);
+    static final private int SEQ_WIDTH = 20;
+    static final private byte[] JSON_DATA = ",\"data\":\"".getBytes(StandardCharsets.UTF_8);
+    static final private byte[] JSON_SUFFIX = "\"}".getBytes(StandardCharsets.UTF_8);
+    static final private int JSON_SEQ_END = Payload.HEADER_SIZE + JSON_PREFIX.length + SEQ_WIDTH;
+    static final private int JSON_MIN = JSON_SEQ_END + JSON_DATA.length + JSON_SUFFIX.length;
+
+    static final private String[] WORDS = ("the quick brown fox jumps over lazy dog nats server "
+        + "cluster subject message publish subscribe migrate drain connection route gateway "
+        + "leaf stream consumer ack sequence").split(" ");
+
+    private final String sizes;
+    private final String content;
+    private final byte[][] ring;
+    private final int mask;
+    private final boolean json;
+    private final double averageSize;
+
+    /**
+     * Builds a ring of at least n payload templates, rounded up to a power
+     * of two, for a message size of messageSize.
+     */
+    PayloadGenerator(String sizes, String content, int messageSize, int n) throws IOException {
+        this.sizes = sizes;
+        this.content = content;
+        this.json = "json".equals(content);
+
+        int len = 1;
+        while (len < n) {
+            len <<= 1;
+        }
+        this.ring = new byte[len][];
+        this.mask = len - 1;
+
+        // seeded, so runs with the same options publish the same payloads.
+        SplittableRandom r = new SplittableRandom(len);
+        SizeDistribution dist = sizeDistribution(sizes, messageSize);
+        int min = json ? JSON_MIN : Payload.HEADER_SIZE;
+        long total = 0;
+        for (int i = 0; i < len; i++) {
+            byte[] b = new byte[Math.max(min, Math.min(MAX_SIZE, dist.sample(r)))];
+            fill(b, r);
+            ring[i] = b;
+            total += b.length;
+        }
+        this.averageSize = (double)total / len;
+    }
+
+    /**
+     * Returns a new payload for the given message, stamped with its header
+     * and, for json, its sequence.
+     */
+    byte[] next(long publisherId, long sequence, int epoch) {
+        byte[] b = new byte[size(sequence)];
+        write(b, 0, publisherId, sequence, epoch);
+        return b;
+    }
+
+    // The size of the given message's payload.
+    int size(long sequence) {
+        return ring[(int)(sequence & mask)].length;
+    }
+
+    /**
+     * Writes the given message's payload into b at off, e.g. into a batch,
+     * which must have room for size(sequence) bytes.
+     */
+    void write(byte[] b, int off, long publisherId, long sequence, int epoch) {
+        byte[] t = ring[(int)(sequence & mask)];
+        System.arraycopy(t, 0, b, off, t.length);
+        Payload.stamp(b, off, publisherId, sequence, epoch, Payload.wallNanos());
+        if (json) {
+            putDigits(b, off + JSON_SEQ_END, sequence);
+        }
+    }
+
+    double averageSize() {
+        return averageSize;
+    }
+
+    int ringSize() {
+        return ring.length;
+    }
+
+    String describe() {
+        return String.format("%s sizes averaging %.0f bytes, %s content", sizes, averageSize, content);
+    }
+
+    // Writes v right aligned, ending before end; the padding is left as is.
+    private static void putDigits(byte[] b, int end, long v) {
+        int i = end;
+        do {
+            b[--i] = (byte)('0' + v % 10);
+            v /= 10;
+        } while (v > 0);
+    }
+
+    private void fill(byte[] b, SplittableRandom r) {
+        switch (content) {
+            case "zeros":
+                break;
+            case "random":
+                for (int i = Payload.HEADER_SIZE; i < b.length; i++) {
+                    b[i] = (byte)r.nextInt(256);
+                }
+                break;
+            case "text":
+                words(b, Payload.HEADER_SIZE, b.length, r);
+                break;
+            case "json":
+                int p = Payload.HEADER_SIZE;
+                p = put(b, p, JSON_PREFIX);
+                for (int i = 0; i < SEQ_WIDTH; i++) {
+                    b[p++] = ' ';
+                }
+                p = put(b, p, JSON_DATA);
+                words(b, p, b.length - JSON_SUFFIX.length, r);
+                put(b, b.length - JSON_SUFFIX.length, JSON_SUFFIX);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown payload content: " + content);
+        }
+    }
+
+    private static int put(byte[] b, int off, byte[] s) {
+        System.arraycopy(s, 0, b, off, s.length);
+        return off + s.length;
+    }
+
+    // Fills b[from, to) with space separated words.
+    private static void words(byte[] b, int from, int to, SplittableRandom r) {
+        int p = from;
+        while (p < to) {
+            String w = WORDS[r.nextInt(WORDS.length)];
+            for (int i = 0; i < w.length() && p < to; i++) {
+                b[p++] = (byte)w.charAt(i);
+            }
+            if (p < to) {
+                b[p++] = ' ';
+            }
+        }
+    }
+
+    private interface SizeDistribution {
+        int sample(SplittableRandom r);
+    }
+
+    private static SizeDistribution sizeDistribution(String spec, int messageSize) throws IOException {
+        int colon = spec.indexOf(':');
+        String kind = colon < 0 ? spec : spec.substring(0, colon);
+        String arg = colon < 0 ? "" : spec.substring(colon + 1);
+        switch (kind) {
+            case "fixed":
+                return r -> messageSize;
+            case "uniform": {
+                String[] bounds = arg.split("-");
+                if (bounds.length != 2) {
+                    throw new IllegalArgumentException("uniform sizes need min-max: " + spec);
+                }
+                int lo = Integer.parseInt(bounds[0]);
+                int hi = Integer.parseInt(bounds[1]);
+                if (lo > hi) {
+                    throw new IllegalArgumentException("uniform sizes need min <= max: " + spec);
+                }
+                return r -> lo + r.nextInt(hi - lo + 1);
+            }
+            case "lognormal": {
+                double sigma = Double.parseDouble(arg);
+                double mu = Math.log(messageSize);
+                return r -> (int)Math.min(MAX_SIZE, Math.round(Math.exp(mu + sigma * gaussian(r))));
+            }
+            case "histogram":
+                return histogram(arg);
+            default:
+                throw new IllegalArgumentException("unknown payload sizes: " + spec);
+        }
+    }
+
+    // Box-Muller, since SplittableRandom has no nextGaussian.
+    private static double gaussian(SplittableRandom r) {
+        double u = 1.0 - r.nextDouble();
+        return Math.sqrt(-2.0 * Math.log(u)) * Math.cos(2.0 * Math.PI * r.nextDouble());
+    }
+
+    // Reads "size weight" lines, or just "size" for a weight of one, e.g.
+    // sizes sampled from production traffic.  Blank lines and lines
+    // starting with # are skipped.
+    private static SizeDistribution histogram(String file) throws IOException {
+        List<int[]> buckets = new ArrayList<>();
+        long total = 0;
+        for (String line : Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] f = line.split("[\\s,]+");
+            int size = Integer.parseInt(f[0]);
+            int weight = f.length > 1 ? Integer.parseInt(f[1]) : 1;
+            if (size < 0 || weight < 0) {
+                throw new IllegalArgumentException("negative size or weight in " + file + ": " + line);
+            }
+            total += weight;
+            buckets.add(new int[] {size, weight});
+        }
+        if (total == 0) {
+            throw new IllegalArgumentException("no sizes in " + file);
+        }
+
+        int[] sizes = new int[buckets.size()];
+        long[] cumulative = new long[buckets.size()];
+        long sum = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = buckets.get(i)[0];
+            sum += buckets.get(i)[1];
+            cumulative[i] = sum;
+        }
+        final long weights = total;
+        return r -> {
+            long x = r.nextLong(weights);
+            int lo = 0;
+            int hi = cumulative.length - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (cumulative[mid] <= x) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return sizes[lo];
+        };
+    }
+}
@@ -0,0 +1,102 @@
+// Copyright 2020 Colin Sullivan
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.java.examples;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The subscriber's counts of received messages and bytes, overall and for
+ * each fanout subject.
+ *
+ * Each dispatcher counts into a stripe of its own, which only its thread
+ * writes, so counting is a plain add and an ordered store with no CAS and
+ * no cache line shared with another dispatcher, even while a migration has
+ * the old and the new connections' dispatchers delivering at once.  The
+ * stripes are summed when the counts are read, for reports and metrics.
+ * Counts are 64-bit, so they don't wrap however long a run is.
+ */
+final class ReceiveCounters {
+
+    // longs either side of a stripe's counts, so that they don't share a
+    // cache line with anything else.
+    static final private int PAD = 8;
+    static final private int MESSAGES = PAD;
+    static final private int BYTES = PAD + 1;
+    static final private int SUBJECTS = PAD + 2;
+
+    private final int subjects;
+    private final List<Stripe> stripes = new CopyOnWriteArrayList<>();
+
+    /**
+     * One dispatcher's counts.  Written by a single thread.
+     */
+    static final class Stripe {
+        private final AtomicLongArray counts;
+        private final int subjects;
+
+        private Stripe(int subjects) {
+            this.subjects = subjects;
+            this.counts = new AtomicLongArray(SUBJECTS + subjects + PAD);
+        }
+
+        // Counts messages of bytes in all received on fanout subject k, or
+        // on no fanout subject if k is -1.
+        void add(int messages, long bytes, int k) {
+            add(MESSAGES, messages);
+            add(BYTES, bytes);
+            if (k >= 0 && k < subjects) {
+                add(SUBJECTS + k, messages);
+            }
+        }
+
+        private void add(int i, long n) {
+            counts.lazySet(i, counts.get(i) + n);
+        }
+    }
+
+    ReceiveCounters(int subjects) {
+        this.subjects = subjects;
+    }
+
+    // A stripe for a new dispatcher.  Stripes are kept for good, so what
+    // the dispatchers of earlier connections counted still adds up.
+    Stripe newStripe() {
+        Stripe s = new Stripe(subjects);
+        stripes.add(s);
+        return s;
+    }
+
+    long messages() {
+        return sum(MESSAGES);
+    }
+
+    long bytes() {
+        return sum(BYTES);
+    }
+
+    // messages received on fanout subject k.
+    long subject(int k) {
+        return sum(SUBJECTS + k);
+    }
+
+    private long sum(int i) {
+        long n = 0;
+        for (Stripe s : stripes) {
+            n += s.counts.get(i);
+        }
+        return n;
+    }
+}
@@ -0,0 +1,236 @@
+// Copyright 2020 Colin Sullivan
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.java.examples;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tracks when messages arrive, to measure how delivery behaves around each
+ * migration command.
+ *
+ * Every arrival is counted and compared with the previous one, keeping the
+ * largest gap between arrivals overall and within each command's window.
+ * tick() is called every 100ms and moves the arrivals since the last tick
+ * into a fixed ring of buckets.  A command's window runs from the command to
+ * a few seconds after it, or to the next command, and is analysed against
+ * the rate in the couple of seconds before it:
+ *
+ *   blackout   the largest gap between arrivals in the window
+ *   recovery   from the end of the blackout to the start of the first
+ *              bucket back within 10% of the rate before the command
+ *   burst      messages above that rate until then, i.e. the backlog
+ *              delivered once delivery resumed
+ */
+class ReceiveTimeline {
+
+    static final long BUCKET_NANOS = 100000000L;
+
+    static final private int NANOSPERSEC = 1000000000;
+
+    // a minute of buckets, the spans around a command, and the tolerance
+    // for being back at the rate before it.
+    static final private int RING = 600;
+    static final private long BASELINE_NANOS = 2L * NANOSPERSEC;
+    static final private long WINDOW_NANOS = 5L * NANOSPERSEC;
+    static final private double STEADY = 0.1;
+
+    // gaps shorter than this are too small to be a blackout, and skip the
+    // bookkeeping.
+    static final private long MIN_GAP_NANOS = 1000000L;
+
+    // arrivals closer than this to the last one recorded don't move it, so
+    // dispatchers receiving at once rarely write the same cache line.
+    static final private long RESOLUTION_NANOS = 10000L;
+
+    // delivery around one command.
+    static class Window {
+        final String label;
+        final long start;
+        long end;
+        long gap;
+        long gapStart;
+        long gapEnd;
+        String summary;
+
+        Window(String label, long start) {
+            this.label = label;
+            this.start = start;
+            this.end = start + WINDOW_NANOS;
+        }
+    }
+
+    private final LongAdder arrivals = new LongAdder();
+    // only ever moves forward, however dispatchers race to update it.
+    private final AtomicLong last = new AtomicLong();
+
+    private final long[] counts = new long[RING];
+    private final long[] bucketStart = new long[RING];
+    private final long[] bucketEnd = new long[RING];
+    private int ticks;
+    private long lastTick;
+    private long lastTotal;
+
+    private long maxGap;
+    private long maxGapEnd;
+    private final List<Window> windows = new ArrayList<>();
+
+    // Starts the clock, e.g. at the publisher's start message.
+    synchronized void start(long now) {
+        last.set(now);
+        lastTick = now;
+    }
+
+    // n messages arrived at now, more than one when they were packed.
+    void arrived(long now, int n) {
+        arrivals.add(n);
+        long prev;
+        do {
+            prev = last.get();
+            // also skips an arrival timed before another dispatcher's later
+            // one was recorded, which mustn't move it back.
+            if (now - prev < RESOLUTION_NANOS) {
+                return;
+            }
+        } while (!last.compareAndSet(prev, now));
+        if (now - prev >= MIN_GAP_NANOS && prev != 0) {
+            gap(prev, now);
+        }
+    }
+
+    private synchronized void gap(long from, long to) {
+        long g = to - from;
+        if (g > maxGap) {
+            maxGap = g;
+            maxGapEnd = to;
+        }
+        for (Window w : windows) {
+            if (w.summary == null && to > w.start && from < w.end && g > w.gap) {
+                w.gap = g;
+                w.gapStart = from;
+                w.gapEnd = to;
+            }
+        }
+    }
+
+    // nanos since the last arrival.
+    long idle(long now) {
+        return now - last.get();
+    }
+
+    synchronized void command(String label, long now) {
+        for (Window w : windows) {
+            w.end = Math.min(w.end, now);
+        }
+        windows.add(new Window(label, now));
+    }
+
+    synchronized void tick(long now) {
+        if (lastTick == 0) {
+            return;
+        }
+        long total = arrivals.sum();
+        int slot = ticks % RING;
+        counts[slot] = total - lastTotal;
+        bucketStart[slot] = lastTick;
+        bucketEnd[slot] = now;
+        lastTotal = total;
+        lastTick = now;
+        ticks++;
+
+        for (Window w : windows) {
+            if (w.summary == null && now >= w.end) {
+                w.summary = analyze(w);
+            }
+        }
+    }
+
+    private String analyze(Window w) {
+        int n = Math.min(ticks, RING);
+        int oldest = ticks > RING ? ticks % RING : 0;
+
+        long before = 0;
+        long beforeNanos = 0;
+        for (int i = 0; i < n; i++) {
+            int s = (oldest + i) % RING;
+            if (bucketStart[s] >= w.start - BASELINE_NANOS && bucketEnd[s] <= w.start) {
+                before += counts[s];
+                beforeNanos += bucketEnd[s] - bucketStart[s];
+            }
+        }
+        String blackout = w.gap == 0 ? "no blackout"
+            : String.format("blackout %.3f ms at +%.3fs", ms(w.gap), seconds(w.gapStart - w.start));
+        if (before == 0) {
+            return blackout + ", no rate before the command to recover to";
+        }
+        double baseline = (double)before / beforeNanos;
+
+        // walk the buckets from the end of the blackout.
+        long from = Math.max(w.start, w.gapEnd);
+        long burst = 0;
+        double peak = 0;
+        long recovered = -1;
+        for (int i = 0; i < n && recovered < 0; i++) {
+            int s = (oldest + i) % RING;
+            if (bucketStart[s] < from) {
+                continue;
+            }
+            if (bucketStart[s] >= w.end) {
+                break;
+            }
+            long d = bucketEnd[s] - bucketStart[s];
+            double rate = (double)counts[s] / d;
+            peak = Math.max(peak, rate);
+            if (Math.abs(rate - baseline) <= STEADY * baseline) {
+                recovered = bucketStart[s] - from;
+            } else {
+                burst += Math.max(0, counts[s] - Math.round(baseline * d));
+            }
+        }
+        return String.format("%s, %s, backlog burst %d msgs (peak %.0f msgs/sec, %.0f before)",
+            blackout, recovered < 0 ? "not back to the rate before in the window" : String.format("recovered in %.0f ms", ms(recovered)),
+            burst, peak * NANOSPERSEC, baseline * NANOSPERSEC);
+    }
+
+    // The blackout after each command, in nanos, in the order they came.
+    synchronized long[] blackouts() {
+        long[] b = new long[windows.size()];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = windows.get(i).gap;
+        }
+        return b;
+    }
+
+    synchronized void report(long startTime) {
+        System.out.printf("Receive timeline: %d messages, largest gap %.3f ms ending at %.3fs\n",
+            arrivals.sum(), ms(maxGap), seconds(maxGapEnd - startTime));
+        for (Window w : windows) {
+            if (w.summary == null) {
+                // the window was still open when the run ended.
+                w.summary = analyze(w);
+            }
+            System.out.printf("Delivery after %s at %.3fs: %s\n", w.label, seconds(w.start - startTime), w.summary);
+        }
+    }
+
+    private static double ms(long nanos) {
+        return nanos / 1000000.0;
+    }
+
+    private static double seconds(long nanos) {
+        return (double)nanos / NANOSPERSEC;
+    }
+}
@@ -0,0 +1,172 @@
+// Copyright 2020 Colin Sullivan
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.java.examples;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import io.nats.client.Connection;
+import io.nats.client.Message;
+
+/**
+ * Keeps a number of requests in flight and tracks their round trips.
+ *
+ * request() blocks until one of the in-flight permits is free, then sends
+ * the request without waiting for its reply.  A request that isn't
+ * answered within the timeout, or that can't be sent, is retried on the
+ * current connection, which after a migration is the new one, until it
+ * runs out of retries.  Round trips are recorded from the first attempt,
+ * so they include any retries, as a caller would see them.
+ *
+ * Requests outstanding on each connection are counted, so a migration can
+ * wait for the replies to those on the old connection before draining it.
+ */
+class RequestTracker {
+
+    // Sends one attempt of a request on c.
+    interface Sender {
+        CompletableFuture<Message> send(Connection c) throws Exception;
+    }
+
+    private final int inflight;
+    private final Semaphore permits;
+    private final long timeoutNanos;
+    private final int retries;
+    private final ScheduledExecutorService timer;
+    private final Map<Connection, AtomicInteger> outstanding = new ConcurrentHashMap<>();
+
+    private final LatencyHistogram rtt = new LatencyHistogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder replied = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    RequestTracker(int inflight, long timeoutMillis, int retries) {
+        this.inflight = inflight;
+        this.permits = new Semaphore(inflight);
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.retries = retries;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "request-timeouts");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Waits for a free in-flight permit and sends a request on the
+     * connection conn supplies.
+     */
+    void request(Supplier<Connection> conn, Sender sender) throws InterruptedException {
+        permits.acquire();
+        sent.increment();
+        attempt(conn, sender, System.nanoTime(), 0);
+    }
+
+    private void attempt(Supplier<Connection> conn, Sender sender, long first, int attempt) {
+        Connection c = conn.get();
+        AtomicInteger n = outstanding.computeIfAbsent(c, k -> new AtomicInteger());
+        n.incrementAndGet();
+
+        CompletableFuture<Message> f;
+        try {
+            f = sender.send(c);
+        } catch (Exception e) {
+            f = new CompletableFuture<>();
+            f.completeExceptionally(e);
+        }
+        CompletableFuture<Message> reply = f;
+        ScheduledFuture<?> timeout = timer.schedule(() -> reply.completeExceptionally(new TimeoutException()),
+            timeoutNanos, TimeUnit.NANOSECONDS);
+
+        reply.whenComplete((m, e) -> {
+            timeout.cancel(false);
+            n.decrementAndGet();
+            if (e == null) {
+                rtt.record(System.nanoTime() - first);
+                replied.increment();
+                permits.release();
+                return;
+            }
+            if (e instanceof TimeoutException) {
+                timeouts.increment();
+            } else {
+                errors.increment();
+            }
+            if (attempt < retries) {
+                retried.increment();
+                attempt(conn, sender, first, attempt + 1);
+            } else {
+                failed.increment();
+                permits.release();
+            }
+        });
+    }
+
+    /**
+     * Waits for the requests outstanding on c to be answered or time out.
+     * Returns false if some were still outstanding after the timeout.
+     */
+    boolean awaitIdle(Connection c, long timeout, TimeUnit unit) throws InterruptedException {
+        AtomicInteger n = outstanding.get(c);
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (n != null && n.get() > 0) {
+            if (System.nanoTime() >= deadline) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        outstanding.remove(c);
+        return true;
+    }
+
+    // Time for a request to be answered or run out of retries.
+    long maxRequestNanos() {
+        return timeoutNanos * (retries + 1);
+    }
+
+    /**
+     * Waits for every request to finish.  Returns false if some were still
+     * in flight after the timeout.
+     */
+    boolean awaitAll(long timeout, TimeUnit unit) throws InterruptedException {
+        if (!permits.tryAcquire(inflight, timeout, unit)) {
+            return false;
+        }
+        permits.release(inflight);
+        return true;
+    }
+
+    void close() {
+        timer.shutdownNow();
+    }
+
+    void report() {
+        System.out.printf("Requests: %d sent with up to %d in flight, %d replied, %d timeouts, %d errors, %d retries, %d failed\n",
+            sent.sum(), inflight, replied.sum(), timeouts.sum(), errors.sum(), retried.sum(), failed.sum());
+        System.out.printf("Round trip: %s\n", LatencyHistogram.summary(rtt.snapshot()));
+    }
+}
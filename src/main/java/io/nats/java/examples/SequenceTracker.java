@@ -0,0 +1,284 @@
+// Copyright 2020 Colin Sullivan
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.java.examples;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tracks the sequence numbers received from one publisher.
+ *
+ * Rather than a bit per message, we keep one past the highest sequence seen
+ * and a sorted, run-length list of the ranges below it that are missing.
+ * In-order delivery touches neither, so memory grows with the number of
+ * gaps rather than the number of messages, and a publisher can send
+ * billions of messages.  A sequence that arrives inside a missing range was
+ * reordered and is removed from the range; one that arrives below the
+ * highest seen and outside every range is a duplicate.
+ */
+class SequenceTracker {
+
+    static final private int NANOSPERSEC = 1000000000;
+
+    // ranges and duplicates listed individually in the report.
+    static final private int REPORT_LIMIT = 32;
+
+    private final long publisherId;
+    private long next;
+    private long received;
+    private long duplicates;
+    private long reordered;
+
+    // missing ranges [start, end), sorted by start, with the time and the
+    // publisher epoch of the message that revealed each one.
+    private long[] gapStart = new long[16];
+    private long[] gapEnd = new long[16];
+    private long[] gapTime = new long[16];
+    private int[] gapEpoch = new int[16];
+    private int gaps;
+
+    private final long[] dupSample = new long[REPORT_LIMIT];
+    private final long[] dupTime = new long[REPORT_LIMIT];
+    private final long[] reorderSample = new long[REPORT_LIMIT];
+    private final long[] reorderTime = new long[REPORT_LIMIT];
+
+    SequenceTracker(long publisherId) {
+        this.publisherId = publisherId;
+    }
+
+    long publisherId() {
+        return publisherId;
+    }
+
+    synchronized void record(long seq, int epoch, long now) {
+        received++;
+        if (seq == next) {
+            next++;
+            return;
+        }
+        if (seq > next) {
+            addGap(next, seq, now, epoch);
+            next = seq + 1;
+            return;
+        }
+
+        int i = findGap(seq);
+        if (i < 0) {
+            if (duplicates < REPORT_LIMIT) {
+                dupSample[(int)duplicates] = seq;
+                dupTime[(int)duplicates] = now;
+            }
+            duplicates++;
+            return;
+        }
+        if (reordered < REPORT_LIMIT) {
+            reorderSample[(int)reordered] = seq;
+            reorderTime[(int)reordered] = now;
+        }
+        reordered++;
+        fill(i, seq);
+    }
+
+    private void addGap(long start, long end, long now, int epoch) {
+        if (gaps == gapStart.length) {
+            int len = gaps * 2;
+            gapStart = Arrays.copyOf(gapStart, len);
+            gapEnd = Arrays.copyOf(gapEnd, len);
+            gapTime = Arrays.copyOf(gapTime, len);
+            gapEpoch = Arrays.copyOf(gapEpoch, len);
+        }
+        gapStart[gaps] = start;
+        gapEnd[gaps] = end;
+        gapTime[gaps] = now;
+        gapEpoch[gaps] = epoch;
+        gaps++;
+    }
+
+    // returns the index of the missing range holding seq, or -1.
+    private int findGap(long seq) {
+        // late messages usually belong to the most recent gap.
+        if (gaps > 0 && seq >= gapStart[gaps - 1]) {
+            return seq < gapEnd[gaps - 1] ? gaps - 1 : -1;
+        }
+        int lo = 0;
+        int hi = gaps - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (gapStart[mid] <= seq) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return (hi >= 0 && seq < gapEnd[hi]) ? hi : -1;
+    }
+
+    // removes seq from the missing range at index i.
+    private void fill(int i, long seq) {
+        if (gapStart[i] == seq && gapEnd[i] == seq + 1) {
+            int tail = gaps - i - 1;
+            System.arraycopy(gapStart, i + 1, gapStart, i, tail);
+            System.arraycopy(gapEnd, i + 1, gapEnd, i, tail);
+            System.arraycopy(gapTime, i + 1, gapTime, i, tail);
+            System.arraycopy(gapEpoch, i + 1, gapEpoch, i, tail);
+            gaps--;
+        } else if (gapStart[i] == seq) {
+            gapStart[i]++;
+        } else if (gapEnd[i] == seq + 1) {
+            gapEnd[i]--;
+        } else {
+            long end = gapEnd[i];
+            gapEnd[i] = seq;
+            addGap(seq + 1, end, gapTime[i], gapEpoch[i]);
+            // move the new range from the end to just after i.
+            int last = gaps - 1;
+            long s = gapStart[last];
+            long t = gapTime[last];
+            int ep = gapEpoch[last];
+            int tail = last - i - 1;
+            System.arraycopy(gapStart, i + 1, gapStart, i + 2, tail);
+            System.arraycopy(gapEnd, i + 1, gapEnd, i + 2, tail);
+            System.arraycopy(gapTime, i + 1, gapTime, i + 2, tail);
+            System.arraycopy(gapEpoch, i + 1, gapEpoch, i + 2, tail);
+            gapStart[i + 1] = s;
+            gapEnd[i + 1] = end;
+            gapTime[i + 1] = t;
+            gapEpoch[i + 1] = ep;
+        }
+    }
+
+    synchronized long missing() {
+        long m = 0;
+        for (int i = 0; i < gaps; i++) {
+            m += gapEnd[i] - gapStart[i];
+        }
+        return m;
+    }
+
+    /**
+     * Adds the sequences sent up to the highest received, and those
+     * missing, to expected and missing indexed by sequence % n, e.g. per
+     * subject when the publisher spreads its messages over n subjects.
+     */
+    synchronized void addByResidue(int n, long[] expected, long[] missing) {
+        long[] e = new long[n + 1];
+        long[] m = new long[n + 1];
+        addResidues(0, next, n, e);
+        for (int i = 0; i < gaps; i++) {
+            addResidues(gapStart[i], gapEnd[i], n, m);
+        }
+        long es = 0;
+        long ms = 0;
+        for (int k = 0; k < n; k++) {
+            es += e[k];
+            ms += m[k];
+            expected[k] += es;
+            missing[k] += ms;
+        }
+    }
+
+    // Counts each sequence in [from, to) against its residue, into a
+    // difference array of n + 1 entries, so a range costs O(1).
+    private static void addResidues(long from, long to, int n, long[] diff) {
+        long len = to - from;
+        if (len <= 0) {
+            return;
+        }
+        diff[0] += len / n;
+        diff[n] -= len / n;
+        int start = (int)(from % n);
+        int end = start + (int)(len % n);
+        diff[start]++;
+        if (end <= n) {
+            diff[end]--;
+        } else {
+            diff[n]--;
+            diff[0]++;
+            diff[end - n]--;
+        }
+    }
+
+    synchronized long duplicates() {
+        return duplicates;
+    }
+
+    synchronized long reordered() {
+        return reordered;
+    }
+
+    /**
+     * Prints the missing ranges, duplicates and reorderings, placing each
+     * against the nearest subscriber migration.  Messages lost after the
+     * highest sequence received only show in the subscriber's totals.
+     */
+    synchronized void report(long startTime, List<NatsLossSubscriber.MigrationEvent> events) {
+        System.out.printf("Publisher %016x: received %d, highest sequence %d, missing %d in %d ranges, duplicates %d, reordered %d\n",
+            publisherId, received, next - 1, missing(), gaps, duplicates, reordered);
+
+        for (int i = 0; i < gaps && i < REPORT_LIMIT; i++) {
+            long n = gapEnd[i] - gapStart[i];
+            System.out.printf("  missing %d-%d (%d) at %.3fs, publisher epoch %d%s\n",
+                gapStart[i], gapEnd[i] - 1, n, seconds(gapTime[i] - startTime), gapEpoch[i],
+                nearest(gapTime[i], events));
+        }
+        if (gaps > REPORT_LIMIT) {
+            System.out.printf("  ... %d more missing ranges\n", gaps - REPORT_LIMIT);
+        }
+        for (int i = 0; i < duplicates && i < REPORT_LIMIT; i++) {
+            System.out.printf("  duplicate %d at %.3fs%s\n", dupSample[i],
+                seconds(dupTime[i] - startTime), nearest(dupTime[i], events));
+        }
+        if (duplicates > REPORT_LIMIT) {
+            System.out.printf("  ... %d more duplicates\n", duplicates - REPORT_LIMIT);
+        }
+        for (int i = 0; i < reordered && i < REPORT_LIMIT; i++) {
+            System.out.printf("  reordered %d at %.3fs%s\n", reorderSample[i],
+                seconds(reorderTime[i] - startTime), nearest(reorderTime[i], events));
+        }
+        if (reordered > REPORT_LIMIT) {
+            System.out.printf("  ... %d more reordered\n", reordered - REPORT_LIMIT);
+        }
+    }
+
+    private static double seconds(long nanos) {
+        return (double)nanos / (double)NANOSPERSEC;
+    }
+
+    // describes the subscriber migration closest in time to t, if any.
+    static String nearest(long t, List<NatsLossSubscriber.MigrationEvent> events) {
+        NatsLossSubscriber.MigrationEvent best = null;
+        long bestDist = Long.MAX_VALUE;
+        int bestIndex = 0;
+        synchronized (events) {
+            for (int i = 0; i < events.size(); i++) {
+                NatsLossSubscriber.MigrationEvent e = events.get(i);
+                long end = e.end == 0 ? t : e.end;
+                long dist = t < e.start ? e.start - t : (t > end ? t - end : 0);
+                if (dist < bestDist) {
+                    bestDist = dist;
+                    best = e;
+                    bestIndex = i + 1;
+                }
+            }
+        }
+        if (best == null) {
+            return "";
+        }
+        if (bestDist == 0) {
+            return String.format(", during subscriber migration %d to %s", bestIndex, best.url);
+        }
+        return String.format(", %.3fs %s subscriber migration %d to %s", seconds(bestDist),
+            t < best.start ? "before" : "after", bestIndex, best.url);
+    }
+}
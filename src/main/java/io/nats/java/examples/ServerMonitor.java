@@ -0,0 +1,104 @@
+// Copyright 2020 Colin Sullivan
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.java.examples;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads a nats-server's monitoring endpoint, e.g. http://host:8222, which
+ * serves the server's state as JSON on /varz, /routez and so on.
+ *
+ * Only top level numeric fields are read, with a pattern rather than a
+ * JSON parser, which is all the migration tools need.
+ */
+final class ServerMonitor {
+
+    static final int DEFAULT_PORT_OFFSET = 4000;
+
+    private ServerMonitor() {
+    }
+
+    /**
+     * Returns the body of endpoint, e.g. "/varz", of the monitoring
+     * endpoint at base.
+     */
+    static String get(String base, String endpoint, int timeoutMillis) throws IOException {
+        HttpURLConnection c = (HttpURLConnection)new URL(base + endpoint).openConnection();
+        c.setConnectTimeout(timeoutMillis);
+        c.setReadTimeout(timeoutMillis);
+        try (InputStream in = c.getInputStream()) {
+            byte[] buf = new byte[8192];
+            StringBuilder sb = new StringBuilder();
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                sb.append(new String(buf, 0, n, StandardCharsets.UTF_8));
+            }
+            return sb.toString();
+        } finally {
+            c.disconnect();
+        }
+    }
+
+    /**
+     * Returns the numeric field name of endpoint, e.g. connections on
+     * /varz or num_routes on /routez, or -1 if the server doesn't report
+     * it.
+     */
+    static long field(String base, String endpoint, String name, int timeoutMillis) throws IOException {
+        Matcher m = Pattern.compile("\"" + Pattern.quote(name) + "\"\\s*:\\s*(\\d+)")
+            .matcher(get(base, endpoint, timeoutMillis));
+        return m.find() ? Long.parseLong(m.group(1)) : -1;
+    }
+
+    /**
+     * Maps a server's url to its monitoring endpoint by spec: a number is
+     * added to the server's port, as with 4222 and 8222 for 4000, "none"
+     * means servers have no endpoint, and anything else is a url in which
+     * {host} is replaced by the server's host, e.g. http://{host}:8222.
+     * The mapping returns null for a server without an endpoint.
+     */
+    static Function<String, String> mapping(String spec) {
+        if ("none".equals(spec)) {
+            return url -> null;
+        }
+        if (spec.matches("-?\\d+")) {
+            int offset = Integer.parseInt(spec);
+            return url -> {
+                URI u = uri(url);
+                return u == null || u.getPort() < 0 ? null : "http://" + u.getHost() + ":" + (u.getPort() + offset);
+            };
+        }
+        return url -> {
+            URI u = uri(url);
+            return u == null ? null : spec.replace("{host}", u.getHost());
+        };
+    }
+
+    private static URI uri(String url) {
+        try {
+            URI u = new URI(url);
+            return u.getHost() == null ? null : u;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+// Copyright 2020 Colin Sullivan
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package io.nats.java.examples;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+import io.nats.client.Message;
+import io.nats.client.MessageHandler;
+
+/**
+ * Fans messages out from a dispatcher thread to a pool of workers.
+ *
+ * Each message is sharded by a key onto one worker's bounded queue, so
+ * messages with the same key are handled in the order they arrived while
+ * different keys are handled in parallel.  When a queue is full submit()
+ * blocks the dispatcher, which leaves messages pending in the client
+ * rather than dropping them; if that persists, the client reports a slow
+ * consumer as it would without the workers.
+ *
+ * Messages in the queues are already off the connection, so draining or
+ * closing it loses nothing.  awaitProcessed() waits for everything
+ * submitted so far to be handled, for migrations and the end of a run.
+ */
+class ShardedProcessor implements AutoCloseable {
+
+    private static class Shard {
+        final BlockingQueue<Message> queue;
+        final AtomicLong submitted = new AtomicLong();
+        final AtomicLong processed = new AtomicLong();
+        Thread thread;
+
+        Shard(int capacity) {
+            queue = new ArrayBlockingQueue<>(capacity);
+        }
+    }
+
+    private final Shard[] shards;
+    private final LongAdder blocked = new LongAdder();
+    private volatile boolean closed;
+
+    /**
+     * Starts workers threads, virtual if requested and the JVM supports
+     * them, each with a queue of capacity messages, handing messages to a
+     * handler of its own from handlers.
+     */
+    ShardedProcessor(int workers, int capacity, boolean virtual, Supplier<MessageHandler> handlers) {
+        this.shards = new Shard[workers];
+        ThreadFactory factory = threadFactory(virtual);
+        for (int i = 0; i < workers; i++) {
+            Shard s = new Shard(capacity);
+            shards[i] = s;
+            MessageHandler handler = handlers.get();
+            s.thread = factory.newThread(() -> work(s, handler));
+            s.thread.setName("receive-worker-" + i);
+            s.thread.start();
+        }
+    }
+
+    // Virtual threads arrived in Java 21 and we build for Java 8, so look
+    // them up reflectively.
+    private static ThreadFactory threadFactory(boolean virtual) {
+        if (virtual) {
+            try {
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+                return (ThreadFactory)factory.invoke(builder);
+            } catch (Exception e) {
+                System.out.println("Virtual threads are not available in this JVM, using platform threads.");
+            }
+        }
+        return r -> {
+            Thread t = new Thread(r);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    private void work(Shard s, MessageHandler handler) {
+        while (!closed) {
+            Message m;
+            try {
+                m = s.queue.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            try {
+                handler.onMessage(m);
+            } catch (Exception e) {
+                System.out.println("Worker exception: " + e.getMessage());
+            }
+            s.processed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Queues m on the worker that owns key, blocking while its queue is
+     * full.
+     */
+    void submit(long key, Message m) throws InterruptedException {
+        Shard s = shards[shard(key, shards.length)];
+        s.submitted.incrementAndGet();
+        if (!s.queue.offer(m)) {
+            blocked.increment();
+            s.queue.put(m);
+        }
+    }
+
+    // spreads the key's bits so keys differing only in high bits, like
+    // publisher ids from different processes, land on different shards.
+    static int shard(long key, int n) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)((h >>> 33) % n);
+    }
+
+    /**
+     * Returns the number of messages queued and not yet handled.
+     */
+    long pending() {
+        long n = 0;
+        for (Shard s : shards) {
+            n += s.submitted.get() - s.processed.get();
+        }
+        return n;
+    }
+
+    /**
+     * Returns how many times the dispatcher blocked on a full queue.
+     */
+    long blocked() {
+        return blocked.sum();
+    }
+
+    /**
+     * Waits until every message submitted before the call has been handled.
+     * Returns false if that takes longer than timeout.
+     */
+    boolean awaitProcessed(long timeout, TimeUnit unit) {
+        long[] target = new long[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            target[i] = shards[i].submitted.get();
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (int i = 0; i < shards.length; i++) {
+            while (shards[i].processed.get() < target[i]) {
+                if (System.nanoTime() - deadline > 0) {
+                    return false;
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Shard s : shards) {
+            s.thread.interrupt();
+        }
+    }
+}
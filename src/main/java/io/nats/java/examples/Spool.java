@@ -0,0 +1,277 @@
+// Copyright 2020 Colin Sullivan
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.java.examples;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+
+/**
+ * Messages set aside on local disk while the client can't take them, e.g.
+ * while both the old and the new server are down for longer than the
+ * reconnect buffer covers.
+ *
+ * The spool is a queue of memory-mapped segment files in a directory.
+ * Messages are appended to the last segment, and read back in order from
+ * the first.  Each entry is
+ *
+ *   length (4 bytes), of the rest of the entry
+ *   connection index (4 bytes)
+ *   subject length (2 bytes) and subject, UTF-8
+ *   payload, to the end of the entry
+ *
+ * A segment is deleted once it has been read to the end, and when the
+ * spool empties the last one is truncated, i.e. written again from the
+ * start, so a spool only holds disk while an outage lasts.
+ *
+ * While the spool holds anything it is active, and publishers must append
+ * to it rather than publish, so messages still reach the server in order.
+ * Used by the publishing workers and a single reader.
+ */
+final class Spool implements AutoCloseable {
+
+    static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    static final private String PREFIX = "spool-";
+    static final private String SUFFIX = ".seg";
+    static final private int ENTRY_HEADER_SIZE = 4 + 4 + 2;
+
+    // A message read back from the spool.
+    static final class Entry {
+        final int index;
+        final String subject;
+        final byte[] payload;
+
+        Entry(int index, String subject, byte[] payload) {
+            this.index = index;
+            this.subject = subject;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * One outage: from the first message spooled to the last read back.
+     */
+    static final class Episode {
+        final long messages;
+        final long bytes;
+        final long maxMessages;
+        final long maxBytes;
+        final long nanos;
+
+        Episode(long messages, long bytes, long maxMessages, long maxBytes, long nanos) {
+            this.messages = messages;
+            this.bytes = bytes;
+            this.maxMessages = maxMessages;
+            this.maxBytes = maxBytes;
+            this.nanos = nanos;
+        }
+    }
+
+    private static final class Segment {
+        final Path path;
+        final MappedByteBuffer buf;
+        // where the writer stopped, once it has moved on to the next.
+        int end = -1;
+
+        Segment(Path path, MappedByteBuffer buf) {
+            this.path = path;
+            this.buf = buf;
+        }
+    }
+
+    private final Path dir;
+    private final int segmentSize;
+    private final Metrics.Timer recoveries;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private int next;
+    private int writePos;
+    private int readPos;
+
+    private volatile boolean active;
+    private volatile long depthMessages;
+    private volatile long depthBytes;
+
+    // the current episode.
+    private long since;
+    private long messages;
+    private long bytes;
+    private long maxMessages;
+    private long maxBytes;
+    private Episode last;
+
+    // the subject of the last entry, which is usually the next one's.
+    private String lastSubject;
+    private byte[] lastSubjectBytes;
+
+    /**
+     * Spools to segments of segmentSize bytes in dir, recording the time
+     * each outage took to recover in recoveries.
+     */
+    Spool(Path dir, long segmentSize, Metrics.Timer recoveries) throws IOException {
+        if (segmentSize > Integer.MAX_VALUE || segmentSize < 1024) {
+            throw new IllegalArgumentException("segment size must be between 1KB and 2GB");
+        }
+        Files.createDirectories(dir);
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+            if (ds.iterator().hasNext()) {
+                throw new IOException(dir + " already holds a spool");
+            }
+        }
+        this.dir = dir;
+        this.segmentSize = (int)segmentSize;
+        this.recoveries = recoveries;
+    }
+
+    boolean isActive() {
+        return active;
+    }
+
+    long depthMessages() {
+        return depthMessages;
+    }
+
+    long depthBytes() {
+        return depthBytes;
+    }
+
+    // The outage that ended last, or null.
+    synchronized Episode lastEpisode() {
+        return last;
+    }
+
+    /**
+     * Appends the message if the spool is active, or if needed, which is
+     * only asked while it isn't.  Returns true if the message was spooled.
+     */
+    synchronized boolean offer(int index, String subject, byte[] payload, boolean needed) throws IOException {
+        if (!active && !needed) {
+            return false;
+        }
+        append(index, subject, payload);
+        return true;
+    }
+
+    synchronized void append(int index, String subject, byte[] payload) throws IOException {
+        if (!subject.equals(lastSubject)) {
+            lastSubject = subject;
+            lastSubjectBytes = subject.getBytes(StandardCharsets.UTF_8);
+        }
+        byte[] subj = lastSubjectBytes;
+        int length = ENTRY_HEADER_SIZE + subj.length + payload.length;
+        if (length > segmentSize) {
+            throw new IOException("a " + payload.length + " byte message doesn't fit in a spool segment");
+        }
+        if (segments.isEmpty() || writePos + length > segmentSize) {
+            if (!segments.isEmpty()) {
+                segments.getLast().end = writePos;
+            }
+            map();
+        }
+        MappedByteBuffer buf = segments.getLast().buf;
+        buf.position(writePos);
+        buf.putInt(length - 4);
+        buf.putInt(index);
+        buf.putShort((short)subj.length);
+        buf.put(subj);
+        buf.put(payload);
+        writePos += length;
+
+        if (!active) {
+            active = true;
+            since = System.nanoTime();
+            messages = 0;
+            bytes = 0;
+            maxMessages = 0;
+            maxBytes = 0;
+        }
+        messages++;
+        bytes += length;
+        depthMessages++;
+        depthBytes += length;
+        maxMessages = Math.max(maxMessages, depthMessages);
+        maxBytes = Math.max(maxBytes, depthBytes);
+    }
+
+    private void map() throws IOException {
+        Path p = dir.resolve(String.format("%s%06d%s", PREFIX, next++, SUFFIX));
+        try (FileChannel ch = FileChannel.open(p, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            segments.addLast(new Segment(p, ch.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize)));
+        }
+        writePos = 0;
+    }
+
+    /**
+     * Takes the oldest message, or returns null and ends the episode once
+     * the spool is empty.  Publishers append to the spool until then, so
+     * whatever the reader publishes before null reaches the server first.
+     */
+    synchronized Entry poll() throws IOException {
+        for (;;) {
+            Segment s = segments.peekFirst();
+            if (s == null) {
+                return null;
+            }
+            int end = s.end >= 0 ? s.end : writePos;
+            if (readPos < end) {
+                MappedByteBuffer buf = s.buf;
+                buf.position(readPos);
+                int length = buf.getInt() + 4;
+                int index = buf.getInt();
+                byte[] subj = new byte[buf.getShort() & 0xffff];
+                buf.get(subj);
+                byte[] payload = new byte[length - ENTRY_HEADER_SIZE - subj.length];
+                buf.get(payload);
+                readPos += length;
+                depthMessages--;
+                depthBytes -= length;
+                return new Entry(index, new String(subj, StandardCharsets.UTF_8), payload);
+            }
+            if (s.end >= 0) {
+                // read to the end of a full segment; the writer has moved on.
+                segments.removeFirst();
+                Files.deleteIfExists(s.path);
+                readPos = 0;
+                continue;
+            }
+            if (active) {
+                long nanos = System.nanoTime() - since;
+                last = new Episode(messages, bytes, maxMessages, maxBytes, nanos);
+                recoveries.record(nanos);
+                active = false;
+            }
+            // truncate: the next outage writes over this one.
+            readPos = 0;
+            writePos = 0;
+            return null;
+        }
+    }
+
+    // Deletes the segments, and whatever they still hold.
+    @Override
+    public synchronized void close() throws IOException {
+        // the mappings are released when the buffers are collected.
+        while (!segments.isEmpty()) {
+            Files.deleteIfExists(segments.removeFirst().path);
+        }
+        active = false;
+    }
+}
@@ -0,0 +1,217 @@
+// Copyright 2020 Colin Sullivan
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.java.examples;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import io.nats.client.Connection;
+import io.nats.client.Nats;
+import io.nats.client.Options;
+
+/**
+ * A warm pool of connections to the servers an application may be asked
+ * to migrate to.
+ *
+ * The pool keeps depth connections established to each candidate server,
+ * so a migration can take a ready connection rather than paying for the
+ * TCP, TLS, auth and INFO handshake while it is under way.  A background
+ * thread pings each standby with a flush, replaces any that fail or have
+ * been idle longer than maxIdle, and tops the pool back up after a take.
+ */
+public class StandbyPool implements AutoCloseable {
+
+    static final private Duration PING_TIMEOUT = Duration.ofSeconds(1);
+
+    private static class Standby {
+        final Connection conn;
+        final long created;
+
+        Standby(Connection conn, long created) {
+            this.conn = conn;
+            this.created = created;
+        }
+    }
+
+    private final Function<String, Options> options;
+    private final int depth;
+    private final long maxIdleNanos;
+    private final Map<String, Deque<Standby>> standbys = new LinkedHashMap<>();
+    private final Map<String, Long> connectNanos = new LinkedHashMap<>();
+    private final ScheduledExecutorService maintainer;
+    private volatile boolean closed;
+
+    /**
+     * Creates a pool of depth connections to each of urls, built with the
+     * application's options, checked every pingInterval and refreshed after
+     * maxIdle.
+     */
+    public StandbyPool(List<String> urls, Function<String, Options> options, int depth,
+            Duration pingInterval, Duration maxIdle) {
+        this.options = options;
+        this.depth = depth;
+        this.maxIdleNanos = maxIdle.toNanos();
+        for (String url : urls) {
+            standbys.put(url, new ArrayDeque<>());
+        }
+        maintainer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "standby-pool");
+            t.setDaemon(true);
+            return t;
+        });
+        maintainer.scheduleWithFixedDelay(this::maintain, 0, pingInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public StandbyPool(List<String> urls, Function<String, Options> options, int depth) {
+        this(urls, options, depth, Duration.ofSeconds(2), Duration.ofSeconds(60));
+    }
+
+    /**
+     * Removes and returns up to depth ready connections to url.  The list is
+     * empty if url is not a candidate or nothing is ready.
+     */
+    public List<Connection> take(String url) {
+        List<Connection> ready = new ArrayList<>();
+        synchronized (this) {
+            Deque<Standby> q = standbys.get(url);
+            while (q != null && !q.isEmpty()) {
+                Standby s = q.poll();
+                if (s.conn.getStatus() == Connection.Status.CONNECTED) {
+                    ready.add(s.conn);
+                } else {
+                    closeQuietly(s.conn);
+                }
+            }
+        }
+        if (!closed) {
+            maintainer.execute(this::maintain);
+        }
+        return ready;
+    }
+
+    /**
+     * Returns the average time it took to connect to url, in nanos, which is
+     * what a migration saves by taking a standby; zero if unknown.
+     */
+    public synchronized long connectTime(String url) {
+        Long t = connectNanos.get(url);
+        return t == null ? 0 : t;
+    }
+
+    // Pings, evicts and replenishes the standbys.  Only runs on the
+    // maintainer thread.
+    private void maintain() {
+        List<String> urls;
+        List<Standby> check = new ArrayList<>();
+        synchronized (this) {
+            urls = new ArrayList<>(standbys.keySet());
+            for (Deque<Standby> q : standbys.values()) {
+                check.addAll(q);
+            }
+        }
+
+        long now = System.nanoTime();
+        for (Standby s : check) {
+            boolean healthy = s.conn.getStatus() == Connection.Status.CONNECTED && now - s.created < maxIdleNanos;
+            if (healthy) {
+                try {
+                    s.conn.flush(PING_TIMEOUT);
+                } catch (Exception e) {
+                    healthy = false;
+                }
+            }
+            if (!healthy) {
+                boolean removed;
+                synchronized (this) {
+                    removed = removeStandby(s);
+                }
+                if (removed) {
+                    closeQuietly(s.conn);
+                }
+            }
+        }
+
+        for (String url : urls) {
+            int missing;
+            synchronized (this) {
+                missing = depth - standbys.get(url).size();
+            }
+            for (int i = 0; i < missing && !closed; i++) {
+                long start = System.nanoTime();
+                try {
+                    Connection c = Nats.connect(options.apply(url));
+                    long end = System.nanoTime();
+                    synchronized (this) {
+                        if (closed) {
+                            closeQuietly(c);
+                            return;
+                        }
+                        standbys.get(url).add(new Standby(c, end));
+                        Long avg = connectNanos.get(url);
+                        connectNanos.put(url, avg == null ? end - start : (avg * 7 + (end - start)) / 8);
+                    }
+                } catch (Exception e) {
+                    // the server is down; try again on the next pass.
+                    break;
+                }
+            }
+        }
+    }
+
+    private boolean removeStandby(Standby s) {
+        for (Deque<Standby> q : standbys.values()) {
+            for (Iterator<Standby> it = q.iterator(); it.hasNext();) {
+                if (it.next() == s) {
+                    it.remove();
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void closeQuietly(Connection c) {
+        try {
+            c.close();
+        } catch (InterruptedException e) {
+            // NOOP
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        maintainer.shutdownNow();
+        List<Standby> all = new ArrayList<>();
+        synchronized (this) {
+            for (Deque<Standby> q : standbys.values()) {
+                all.addAll(q);
+                q.clear();
+            }
+        }
+        for (Standby s : all) {
+            closeQuietly(s.conn);
+        }
+    }
+}
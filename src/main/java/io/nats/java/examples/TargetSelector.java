@@ -0,0 +1,323 @@
+// Copyright 2020 Colin Sullivan
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.java.examples;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import io.nats.client.Connection;
+import io.nats.client.Nats;
+import io.nats.client.Options;
+
+/**
+ * Picks the server to migrate to from a list of candidates.
+ *
+ * Every candidate is probed in parallel: the time to connect, the round
+ * trip of a flush (a PING and its PONG) as the best of a few, and the
+ * number of clients the server reports on its monitoring endpoint's /varz,
+ * when it has one.  The reachable candidates are scored by a policy, lower
+ * being better, and the best is chosen.  Probes are cached for a while, so
+ * a burst of migrations, e.g. a fleet moving in waves, doesn't probe the
+ * same servers again.
+ *
+ * Probes connect with the application's own options for the candidate, so
+ * they authenticate and use TLS as its connections do, but without its
+ * listeners or reconnects.  The monitoring endpoint of nats://host:port is
+ * taken to be http://host:port+4000, as with 4222 and 8222 in
+ * scripts/migrate_test.sh; pass another mapping (see
+ * ServerMonitor.mapping) to the constructor if the servers differ.
+ */
+public class TargetSelector {
+
+    static final long DEFAULT_TTL_MILLIS = 30000;
+    static final private long PROBE_TIMEOUT_MILLIS = 2000;
+    static final private int PINGS = 3;
+
+    /**
+     * What a probe of one candidate found.  clients is -1 if the server's
+     * monitoring endpoint couldn't be reached.
+     */
+    public static class Probe {
+        public final String url;
+        public final long time;
+        public final boolean reachable;
+        public final long connectNanos;
+        public final long rttNanos;
+        public final int clients;
+        public final String error;
+
+        Probe(String url, long time, long connectNanos, long rttNanos, int clients) {
+            this.url = url;
+            this.time = time;
+            this.reachable = true;
+            this.connectNanos = connectNanos;
+            this.rttNanos = rttNanos;
+            this.clients = clients;
+            this.error = null;
+        }
+
+        Probe(String url, long time, String error) {
+            this.url = url;
+            this.time = time;
+            this.reachable = false;
+            this.connectNanos = 0;
+            this.rttNanos = 0;
+            this.clients = -1;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Scores a reachable candidate; the lowest score wins.
+     */
+    public interface ScoringPolicy {
+        double score(Probe p);
+    }
+
+    // the round trip alone.
+    public static final ScoringPolicy LATENCY = p -> millis(p.rttNanos);
+
+    // the fewest clients, with unknown counts last.
+    public static final ScoringPolicy LOAD = p -> p.clients < 0 ? Integer.MAX_VALUE : p.clients;
+
+    // the round trip in ms, plus a tenth of the connect time, plus 10us per
+    // client, so a lightly loaded server wins unless it is much further
+    // away.
+    public static final ScoringPolicy BALANCED = p -> millis(p.rttNanos) + millis(p.connectNanos) / 10
+        + Math.max(0, p.clients) * 0.01;
+
+    /**
+     * The candidates of one selection, scored, and the one chosen.
+     */
+    public static class Selection {
+        public final List<Probe> probes;
+        public final double[] scores;
+        public final Probe best;
+        public final double bestScore;
+        public final int cached;
+        public final long nanos;
+
+        Selection(List<Probe> probes, double[] scores, Probe best, double bestScore, int cached, long nanos) {
+            this.probes = probes;
+            this.scores = scores;
+            this.best = best;
+            this.bestScore = bestScore;
+            this.cached = cached;
+            this.nanos = nanos;
+        }
+
+        // key=value pairs for a +OK reply, without spaces in the values.
+        String reply() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("target=%s score=%.3f connect=%.3f rtt=%.3f clients=%d select=%.3f probed=%d cached=%d candidates=",
+                best.url, bestScore, millis(best.connectNanos), millis(best.rttNanos), best.clients,
+                millis(nanos), probes.size() - cached, cached));
+            for (int i = 0; i < probes.size(); i++) {
+                sb.append(i == 0 ? "" : ",").append(probes.get(i).url).append('=');
+                sb.append(probes.get(i).reachable ? String.format("%.3f", scores[i]) : "unreachable");
+            }
+            return sb.toString();
+        }
+
+        String describe() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < probes.size(); i++) {
+                Probe p = probes.get(i);
+                sb.append(i == 0 ? "" : ", ");
+                if (p.reachable) {
+                    sb.append(String.format("%s score %.3f (connect %.3f ms, rtt %.3f ms, %s clients)", p.url, scores[i],
+                        millis(p.connectNanos), millis(p.rttNanos), p.clients < 0 ? "unknown" : Integer.toString(p.clients)));
+                } else {
+                    sb.append(String.format("%s unreachable (%s)", p.url, p.error));
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    private final ScoringPolicy policy;
+    private final long ttlNanos;
+    private final Function<String, String> monitorUrl;
+    private final Function<String, Options> options;
+    private final Map<String, Probe> cache = new ConcurrentHashMap<>();
+    private final ExecutorService probes = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "target-probe");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public TargetSelector() {
+        this(BALANCED, DEFAULT_TTL_MILLIS);
+    }
+
+    public TargetSelector(ScoringPolicy policy, long ttlMillis) {
+        this(policy, ttlMillis, ServerMonitor.mapping(Integer.toString(ServerMonitor.DEFAULT_PORT_OFFSET)),
+            url -> new Options.Builder().server(url).build());
+    }
+
+    // monitorUrl maps a candidate's url to its monitoring endpoint, or null
+    // if it has none, and options gives the application's options for a
+    // candidate's url, as for a StandbyPool.
+    public TargetSelector(ScoringPolicy policy, long ttlMillis, Function<String, String> monitorUrl,
+            Function<String, Options> options) {
+        this.policy = policy;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.monitorUrl = monitorUrl;
+        this.options = options;
+    }
+
+    // A built in policy by name: balanced, latency or load.
+    public static ScoringPolicy policy(String name) {
+        switch (name) {
+            case "balanced":
+                return BALANCED;
+            case "latency":
+                return LATENCY;
+            case "load":
+                return LOAD;
+            default:
+                throw new IllegalArgumentException("unknown scoring policy: " + name);
+        }
+    }
+
+    /**
+     * Probes the candidates that aren't cached, in parallel, and scores
+     * them all.  The selection's best is null if none was reachable.
+     */
+    public Selection select(List<String> urls) throws InterruptedException {
+        long start = System.nanoTime();
+        List<CompletableFuture<Probe>> pending = new ArrayList<>();
+        int cached = 0;
+        for (String url : urls) {
+            Probe p = cache.get(url);
+            if (p != null && start - p.time < ttlNanos) {
+                cached++;
+                pending.add(CompletableFuture.completedFuture(p));
+            } else {
+                pending.add(CompletableFuture.supplyAsync(() -> probe(url), probes));
+            }
+        }
+
+        List<Probe> results = new ArrayList<>();
+        double[] scores = new double[urls.size()];
+        Probe best = null;
+        double bestScore = 0;
+        for (int i = 0; i < pending.size(); i++) {
+            Probe p;
+            try {
+                p = pending.get(i).get();
+            } catch (ExecutionException e) {
+                p = new Probe(urls.get(i), System.nanoTime(), String.valueOf(e.getCause()));
+            }
+            results.add(p);
+            // only cache what was reached, so an unreachable server is tried
+            // again next time.
+            if (p.reachable) {
+                cache.put(p.url, p);
+                scores[i] = policy.score(p);
+                if (best == null || scores[i] < bestScore) {
+                    best = p;
+                    bestScore = scores[i];
+                }
+            } else {
+                cache.remove(p.url);
+            }
+        }
+        return new Selection(results, scores, best, bestScore, cached, System.nanoTime() - start);
+    }
+
+    // Connects to url, times a few flushes, and asks its monitoring
+    // endpoint for the number of clients.
+    private Probe probe(String url) {
+        long start = System.nanoTime();
+        Connection c;
+        try {
+            c = Nats.connect(probeOptions(options.apply(url), url));
+        } catch (Exception e) {
+            return new Probe(url, System.nanoTime(), e.getMessage() == null ? e.toString() : e.getMessage());
+        }
+        long connect = System.nanoTime() - start;
+        long rtt = Long.MAX_VALUE;
+        try {
+            for (int i = 0; i < PINGS; i++) {
+                long t = System.nanoTime();
+                c.flush(Duration.ofMillis(PROBE_TIMEOUT_MILLIS));
+                rtt = Math.min(rtt, System.nanoTime() - t);
+            }
+        } catch (Exception e) {
+            return new Probe(url, System.nanoTime(), "no PONG: " + e.getMessage());
+        } finally {
+            try {
+                c.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return new Probe(url, System.nanoTime(), connect, rtt, clients(url));
+    }
+
+    // The application's security settings for url, with a short timeout,
+    // no reconnects and none of its listeners, which would take the probe
+    // for one of the application's own connections.
+    static Options probeOptions(Options app, String url) {
+        Options.Builder b = new Options.Builder().server(url).connectionName("TargetProbe")
+            .connectionTimeout(Duration.ofMillis(PROBE_TIMEOUT_MILLIS)).noReconnect();
+        if (app.getSslContext() != null) {
+            b.sslContext(app.getSslContext());
+        }
+        if (app.getAuthHandler() != null) {
+            b.authHandler(app.getAuthHandler());
+        }
+        if (app.getUsernameChars() != null) {
+            b.userInfo(app.getUsernameChars(), app.getPasswordChars());
+        }
+        if (app.getTokenChars() != null) {
+            b.token(app.getTokenChars());
+        }
+        if (app.getDataPortType() != null) {
+            b.dataPortType(app.getDataPortType());
+        }
+        return b.build();
+    }
+
+    private int clients(String url) {
+        String m = monitorUrl.apply(url);
+        if (m == null) {
+            return -1;
+        }
+        try {
+            return (int)ServerMonitor.field(m, "/varz", "connections", (int)PROBE_TIMEOUT_MILLIS);
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    void close() {
+        probes.shutdownNow();
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1000000.0;
+    }
+}
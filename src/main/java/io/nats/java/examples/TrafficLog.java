@@ -0,0 +1,297 @@
+// Copyright 2020 Colin Sullivan
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package io.nats.java.examples;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A log of received messages in a directory of memory-mapped segment
+ * files, for replaying production-shaped traffic.
+ *
+ * Each segment starts with an 8 byte magic and holds entries of
+ *
+ *   length (4 bytes), of the rest of the entry
+ *   arrival time (8 bytes), from System.nanoTime
+ *   subject length (2 bytes) and subject, UTF-8
+ *   payload, to the end of the entry
+ *
+ * A zero length marks the end of a segment.  Entries are written body
+ * first and length last, so a reader never sees a partly written entry.
+ * Segments are preallocated, and stay at their full size on disk (sparse
+ * where the file system allows).
+ */
+final class TrafficLog {
+
+    static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    static final private byte[] MAGIC = "NATSREC1".getBytes(StandardCharsets.US_ASCII);
+    static final private String PREFIX = "traffic-";
+    static final private String SUFFIX = ".log";
+
+    private TrafficLog() {
+    }
+
+    private static Path segment(Path dir, int index) {
+        return dir.resolve(String.format("%s%06d%s", PREFIX, index, SUFFIX));
+    }
+
+    private static List<Path> segments(Path dir) throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+            for (Path p : ds) {
+                paths.add(p);
+            }
+        }
+        paths.sort(null);
+        return paths;
+    }
+
+    /**
+     * Appends entries to a new log.  Safe to call from several dispatcher
+     * or worker threads.
+     */
+    static class Writer implements AutoCloseable {
+        private final Path dir;
+        private final long segmentSize;
+        private int index;
+        private MappedByteBuffer buf;
+        private long entries;
+
+        // the subject of the last entry, which is usually the next one's.
+        private String lastSubject;
+        private byte[] lastSubjectBytes;
+
+        Writer(Path dir, long segmentSize) throws IOException {
+            if (segmentSize > Integer.MAX_VALUE || segmentSize < 1024) {
+                throw new IllegalArgumentException("segment size must be between 1KB and 2GB");
+            }
+            Files.createDirectories(dir);
+            if (!segments(dir).isEmpty()) {
+                throw new IOException(dir + " already holds a recording");
+            }
+            this.dir = dir;
+            this.segmentSize = segmentSize;
+            map();
+        }
+
+        private void map() throws IOException {
+            try (FileChannel ch = FileChannel.open(segment(dir, index), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            }
+            buf.put(MAGIC);
+        }
+
+        void append(String subject, byte[] payload, long nanos) throws IOException {
+            append(subject, payload, 0, payload.length, nanos);
+        }
+
+        // Appends len bytes of payload from off, e.g. one frame of a batch.
+        synchronized void append(String subject, byte[] payload, int off, int len, long nanos) throws IOException {
+            if (!subject.equals(lastSubject)) {
+                lastSubject = subject;
+                lastSubjectBytes = subject.getBytes(StandardCharsets.UTF_8);
+            }
+            byte[] subj = lastSubjectBytes;
+            int length = 8 + 2 + subj.length + len;
+            // leave room for this entry's length and the end marker.
+            if (4 + length + 4 > buf.remaining()) {
+                if (4 + length + 4 + MAGIC.length > segmentSize) {
+                    throw new IOException("a " + len + " byte message doesn't fit in a segment");
+                }
+                buf.force();
+                index++;
+                map();
+            }
+            int start = buf.position();
+            buf.position(start + 4);
+            buf.putLong(nanos);
+            buf.putShort((short)subj.length);
+            buf.put(subj);
+            buf.put(payload, off, len);
+            buf.putInt(start, length);
+            entries++;
+        }
+
+        synchronized long entries() {
+            return entries;
+        }
+
+        @Override
+        public synchronized void close() {
+            buf.force();
+        }
+    }
+
+    /**
+     * Reads a log in order, straight from the mapped segments.  Used by a
+     * single thread.
+     */
+    static class Reader implements AutoCloseable {
+        private final List<MappedByteBuffer> segs = new ArrayList<>();
+        private final long count;
+        private final long first;
+        private final long last;
+
+        private int seg;
+        private MappedByteBuffer buf;
+        // the current entry.
+        private int pos = -1;
+        private int length;
+        private long nanos;
+        private int subjectLength;
+
+        private byte[] lastSubjectBytes = new byte[0];
+        private String lastSubject;
+
+        Reader(Path dir) throws IOException {
+            for (Path p : segments(dir)) {
+                try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+                    MappedByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                    byte[] magic = new byte[MAGIC.length];
+                    b.get(magic);
+                    if (!Arrays.equals(magic, MAGIC)) {
+                        throw new IOException(p + " is not a traffic log segment");
+                    }
+                    segs.add(b);
+                }
+            }
+            if (segs.isEmpty()) {
+                throw new IOException("no recording in " + dir);
+            }
+            rewind();
+
+            // count the entries and find the span of arrivals.
+            long n = 0;
+            long f = 0;
+            long l = 0;
+            while (next()) {
+                if (n == 0) {
+                    f = nanos;
+                }
+                l = nanos;
+                n++;
+            }
+            count = n;
+            first = f;
+            last = l;
+            rewind();
+        }
+
+        private void rewind() {
+            seg = 0;
+            buf = segs.get(0);
+            pos = -1;
+        }
+
+        long count() {
+            return count;
+        }
+
+        // nanos between the first and last arrival.
+        long duration() {
+            return last - first;
+        }
+
+        /**
+         * Moves to the next entry; false at the end of the log.
+         */
+        boolean next() {
+            int p = pos < 0 ? MAGIC.length : pos + 4 + length;
+            for (;;) {
+                int len = p + 4 <= buf.limit() ? buf.getInt(p) : 0;
+                if (len > 0) {
+                    pos = p;
+                    length = len;
+                    nanos = buf.getLong(p + 4);
+                    subjectLength = buf.getShort(p + 12) & 0xffff;
+                    return true;
+                }
+                if (seg + 1 >= segs.size()) {
+                    return false;
+                }
+                buf = segs.get(++seg);
+                p = MAGIC.length;
+            }
+        }
+
+        /**
+         * Returns the arrival time of the entry after this one without
+         * moving to it, or -1 at the end of the log.
+         */
+        long peekNanos() {
+            int p = pos + 4 + length;
+            MappedByteBuffer b = buf;
+            int s = seg;
+            for (;;) {
+                if (p + 4 <= b.limit() && b.getInt(p) > 0) {
+                    return b.getLong(p + 4);
+                }
+                if (s + 1 >= segs.size()) {
+                    return -1;
+                }
+                b = segs.get(++s);
+                p = MAGIC.length;
+            }
+        }
+
+        long nanos() {
+            return nanos;
+        }
+
+        // Only allocates when the subject differs from the last entry's.
+        String subject() {
+            int off = pos + 14;
+            boolean same = subjectLength == lastSubjectBytes.length;
+            for (int i = 0; same && i < subjectLength; i++) {
+                same = buf.get(off + i) == lastSubjectBytes[i];
+            }
+            if (!same) {
+                lastSubjectBytes = new byte[subjectLength];
+                buf.position(off);
+                buf.get(lastSubjectBytes);
+                lastSubject = new String(lastSubjectBytes, StandardCharsets.UTF_8);
+            }
+            return lastSubject;
+        }
+
+        int payloadLength() {
+            return length - 10 - subjectLength;
+        }
+
+        /**
+         * Copies the payload into dst, which must hold payloadLength() bytes.
+         */
+        void payload(byte[] dst) {
+            buf.position(pos + 14 + subjectLength);
+            buf.get(dst, 0, payloadLength());
+        }
+
+        @Override
+        public void close() {
+            // the mappings are released when the buffers are collected.
+            segs.clear();
+            buf = null;
+        }
+    }
+}
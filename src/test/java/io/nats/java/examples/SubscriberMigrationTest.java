@@ -0,0 +1,120 @@
+// Copyright 2020 Colin Sullivan
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.java.examples;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import io.nats.client.Connection;
+import io.nats.client.Nats;
+
+public class SubscriberMigrationTest {
+
+    /**
+     * A server that accepts a connection and then stops answering pings
+     * once it has been sent a subscription, so a flush after subscribing
+     * waits until it times out or is interrupted.
+     */
+    static class StallingServer implements AutoCloseable {
+        final ServerSocket socket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        final CountDownLatch subscribed = new CountDownLatch(1);
+        private final Thread thread = new Thread(this::serve, "stalling-server");
+
+        StallingServer() throws Exception {
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        String url() {
+            return "nats://127.0.0.1:" + socket.getLocalPort();
+        }
+
+        private void serve() {
+            try (Socket s = socket.accept()) {
+                OutputStream out = s.getOutputStream();
+                out.write(("INFO {\"server_id\":\"stalling\",\"version\":\"2.1.0\",\"go\":\"go1.13\",\"host\":\"127.0.0.1\","
+                    + "\"port\":" + socket.getLocalPort() + ",\"max_payload\":1048576,\"proto\":1}\r\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith("SUB ")) {
+                        subscribed.countDown();
+                    } else if (line.startsWith("PING") && subscribed.getCount() > 0) {
+                        out.write("PONG\r\n".getBytes(StandardCharsets.UTF_8));
+                        out.flush();
+                    }
+                }
+            } catch (Exception e) {
+                // closed by the test.
+            }
+        }
+
+        @Override
+        public void close() throws Exception {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void cancelWhileSubscribingClosesTheNewConnection() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (StallingServer server = new StallingServer()) {
+            NatsLossSubscriber sub = new NatsLossSubscriber(server.url(), "migration.test");
+            // the new server's connection, as if taken from the standby pool.
+            Connection standby = Nats.connect(sub.getOptions(server.url()));
+            ControlPlane.Migration m = new ControlPlane.Migration(server.url(),
+                Collections.singletonList(standby), executor, stage -> { });
+
+            CompletableFuture<Connection> f = sub.lmh.migrate(m);
+            assertTrue("the migration never subscribed", server.subscribed.await(5, TimeUnit.SECONDS));
+            m.cancel("cancelled");
+            try {
+                f.get(10, TimeUnit.SECONDS);
+                fail("the cancelled migration completed");
+            } catch (CancellationException e) {
+                // as expected.
+            }
+
+            // the drain gives up on the stalled server after its timeout
+            // and closes the connection.
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(15);
+            while (standby.getStatus() != Connection.Status.CLOSED && System.nanoTime() < deadline) {
+                Thread.sleep(50);
+            }
+            assertEquals(Connection.Status.CLOSED, standby.getStatus());
+            assertTrue("the latency window was left open", sub.migrations.get(0).end != 0);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}